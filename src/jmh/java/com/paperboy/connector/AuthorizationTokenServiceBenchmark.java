@@ -0,0 +1,56 @@
+package com.paperboy.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JWT sign (token generation) and verify (subscription authorization), requires PAPERBOY_JWT_SECRET to be set (the
+ * Gradle jmh task provides one).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthorizationTokenServiceBenchmark {
+
+    private AuthorizationTokenService authorizationTokenService;
+    private String token;
+
+    @Setup
+    public void setup() {
+        authorizationTokenService = new AuthorizationTokenService(new PaperboyCallbackHandler() {
+            @Override
+            public void onSubscription(MessageSender msgSender, String userId, String channel) {
+            }
+
+            @Override
+            public boolean hasAccess(String userId, String channel) {
+                return true;
+            }
+        });
+        token = authorizationTokenService.generateToken("user-1", "channel-1");
+    }
+
+    @Benchmark
+    public String createToken() {
+        return authorizationTokenService.generateToken("user-1", "channel-1");
+    }
+
+    @Benchmark
+    public AuthorizationMessage authorize() {
+        return authorizationTokenService.authorize(token, "ws-1");
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.paperboy.connector;
+
+/**
+ * Typical small state update payload.
+ */
+public class BenchmarkPayload implements Payload {
+
+    private final String symbol;
+    private final double price;
+    private final long volume;
+    private final boolean open;
+
+    public BenchmarkPayload(String symbol, double price, long volume, boolean open) {
+        this.symbol = symbol;
+        this.price = price;
+        this.volume = volume;
+        this.open = open;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.paperboy.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish fan-out of the embedded backend onto in-process stub nodes, messages/sec of single and batched mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmbeddedBackendBenchmark {
+
+    private static final int BURST = 100;
+
+    @Param({"1", "3"})
+    public int nodes;
+
+    @Param({"false", "true"})
+    public boolean batching;
+
+    private final List<StubPaperboyNode> stubNodes = new ArrayList<>();
+    private EmbeddedBackend embeddedBackend;
+    private Message message;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> services = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            StubPaperboyNode stubNode = new StubPaperboyNode();
+            stubNodes.add(stubNode);
+            services.add(stubNode.url());
+        }
+        embeddedBackend = new EmbeddedBackend("benchmark-token");
+        embeddedBackend.setBatchingEnabled(batching);
+        embeddedBackend.initWithServices(services);
+        message = new Message(null, "prices-EURUSD", new BenchmarkPayload("EURUSD", 1.08215, 1_250_000L, true));
+    }
+
+    @TearDown
+    public void tearDown() {
+        embeddedBackend.close();
+        stubNodes.forEach(StubPaperboyNode::close);
+    }
+
+    @Benchmark
+    public void publish() {
+        embeddedBackend.publish("paperboy-message", message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void publishBurst() {
+        CompletableFuture<?>[] futures = new CompletableFuture[BURST];
+        for (int i = 0; i < BURST; i++) {
+            futures[i] = embeddedBackend.publishAsync("paperboy-message", message);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+}
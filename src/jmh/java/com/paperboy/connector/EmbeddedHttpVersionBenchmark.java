@@ -0,0 +1,74 @@
+package com.paperboy.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.http.HttpClient;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unbatched publishing of the embedded backend onto an in-process node speaking HTTP/1.1 and cleartext HTTP/2,
+ * messages/sec per HTTP version. The node's request counters are printed on tear down.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmbeddedHttpVersionBenchmark {
+
+    private static final int BURST = 100;
+
+    @Param({"HTTP_1_1", "HTTP_2"})
+    public HttpClient.Version httpVersion;
+
+    private StubH2cPaperboyNode stubNode;
+    private EmbeddedBackend embeddedBackend;
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        stubNode = new StubH2cPaperboyNode();
+        embeddedBackend = new EmbeddedBackend("benchmark-token");
+        embeddedBackend.setHttpVersion(httpVersion);
+        embeddedBackend.initWithServices(List.of(stubNode.url()));
+        message = new Message(null, "prices-EURUSD", new BenchmarkPayload("EURUSD", 1.08215, 1_250_000L, true));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.out.printf("%n%d requests, %d over HTTP/2%n", stubNode.requests(), stubNode.http2Requests());
+        embeddedBackend.close();
+        stubNode.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        embeddedBackend.publish("paperboy-message", message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void publishBurst() {
+        CompletableFuture<?>[] futures = new CompletableFuture[BURST];
+        for (int i = 0; i < BURST; i++) {
+            futures[i] = embeddedBackend.publishAsync("paperboy-message", message);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+}
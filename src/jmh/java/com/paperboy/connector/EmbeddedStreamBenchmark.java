@@ -0,0 +1,74 @@
+package com.paperboy.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing of the embedded backend onto an in-process node over REST and over the stream, messages/sec. A streamed
+ * publish completes once its frame is written, a REST publish once the node responded. The node's counters are printed
+ * on tear down (REST requests of the streaming run are fallbacks).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmbeddedStreamBenchmark {
+
+    private static final int BURST = 100;
+
+    @Param({"false", "true"})
+    public boolean streaming;
+
+    private StubStreamPaperboyNode stubNode;
+    private EmbeddedBackend embeddedBackend;
+    private Message message;
+
+    @Setup
+    public void setup() throws Exception {
+        stubNode = new StubStreamPaperboyNode();
+        embeddedBackend = new EmbeddedBackend("benchmark-token");
+        embeddedBackend.setStreamingEnabled(streaming);
+        embeddedBackend.initWithServices(List.of(stubNode.url()));
+        message = new Message(null, "prices-EURUSD", new BenchmarkPayload("EURUSD", 1.08215, 1_250_000L, true));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.out.printf("%n%d REST requests, %d streamed messages%n", stubNode.requests(), stubNode.streamedMessages());
+        embeddedBackend.close();
+        stubNode.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        embeddedBackend.publish("paperboy-message", message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void publishBurst() {
+        CompletableFuture<?>[] futures = new CompletableFuture[BURST];
+        for (int i = 0; i < BURST; i++) {
+            futures[i] = embeddedBackend.publishAsync("paperboy-message", message);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.paperboy.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates subscription requests spread by the node selectors over in-process nodes with injected latencies of 1, 5
+ * and 25 ms, reporting the mean request time. Requests are measured the way the embedded backend reports them to its
+ * selector; the number of requests per node is printed on tear down.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class NodeSelectionBenchmark {
+
+    private static final int[] LATENCIES_MILLIS = {1, 5, 25};
+
+    @Param({"roundRobin", "leastOutstanding", "ewma"})
+    public String selector;
+
+    private final List<StubH2cPaperboyNode> stubNodes = new ArrayList<>();
+    private final List<String> nodes = new ArrayList<>();
+    private NodeSelector nodeSelector;
+    private HttpClient httpClient;
+
+    @Setup
+    public void setup() throws Exception {
+        for (int latency : LATENCIES_MILLIS) {
+            StubH2cPaperboyNode stubNode = new StubH2cPaperboyNode(Duration.ofMillis(latency));
+            stubNodes.add(stubNode);
+            nodes.add(stubNode.url());
+        }
+        switch (selector) {
+            case "leastOutstanding":
+                nodeSelector = new LeastOutstandingNodeSelector();
+                break;
+            case "ewma":
+                nodeSelector = new EwmaNodeSelector();
+                break;
+            default:
+                nodeSelector = new RoundRobinNodeSelector();
+        }
+        httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        System.out.println();
+        for (int i = 0; i < stubNodes.size(); i++) {
+            System.out.printf("%d ms node: %d requests%n", LATENCIES_MILLIS[i], stubNodes.get(i).requests());
+            stubNodes.get(i).close();
+        }
+    }
+
+    @Benchmark
+    public int subscribe() throws Exception {
+        String node = nodeSelector.select(nodes);
+        HttpRequest post = HttpRequest.newBuilder()
+                .POST(HttpRequest.BodyPublishers.ofString("{}"))
+                .uri(URI.create(node + "/subscribeTopic/benchmark"))
+                .build();
+        long start = System.nanoTime();
+        nodeSelector.requestStarted(node);
+        int status = 0;
+        try {
+            status = httpClient.send(post, HttpResponse.BodyHandlers.discarding()).statusCode();
+            return status;
+        } finally {
+            nodeSelector.requestCompleted(node, System.nanoTime() - start, status == 200);
+        }
+    }
+
+}
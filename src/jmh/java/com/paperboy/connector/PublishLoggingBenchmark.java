@@ -0,0 +1,81 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logging cost per published message, meant to be run with the GC profiler ({@code -Pjmh.profilers=gc}) to compare the
+ * allocated bytes per message. "perMessageLine" is the former INFO line of every publish, "topicSummary" the per-topic
+ * summary replacing it. Records are written to a discarding handler, so log I/O is not included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishLoggingBenchmark {
+
+    private static final String TOPIC = "paperboy-message";
+
+    @Param({"INFO", "WARNING"})
+    public String level;
+
+    private Log log;
+    private TopicActivityLog topicActivityLog;
+
+    @Setup
+    public void setup() {
+        // commons-logging falls back to java.util.logging on the benchmark classpath
+        Logger logger = Logger.getLogger(PublishLoggingBenchmark.class.getName());
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.parse(level));
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        log = LogFactory.getLog(PublishLoggingBenchmark.class);
+        topicActivityLog = new TopicActivityLog(log, "Published", Duration.ofMinutes(1));
+    }
+
+    @Benchmark
+    public void perMessageLine() {
+        log.info(String.format("Publishing message on topic '%s'.", TOPIC));
+    }
+
+    @Benchmark
+    public void topicSummary() {
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Publishing message on topic '%s'.", TOPIC));
+        }
+        topicActivityLog.record(TOPIC);
+    }
+
+}
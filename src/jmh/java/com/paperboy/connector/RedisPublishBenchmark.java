@@ -0,0 +1,80 @@
+package com.paperboy.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redis publish throughput of the pooled connection path against the pipelined publisher, on an in-process RESP stub.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedisPublishBenchmark {
+
+    private static final int BURST = 100;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    private StubRedisServer stubRedisServer;
+    private JedisPool jedisPool;
+    private RedisBackend redisBackend;
+    private Message message;
+
+    @Setup
+    public void setup() throws IOException {
+        stubRedisServer = new StubRedisServer();
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(16);
+        jedisPool = new JedisPool(poolConfig, "127.0.0.1", stubRedisServer.port());
+        redisBackend = new RedisBackend(jedisPool);
+        redisBackend.setPipelinedPublishing(pipelined);
+        redisBackend.init();
+        message = new Message(null, "prices-EURUSD", new BenchmarkPayload("EURUSD", 1.08215, 1_250_000L, true));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        redisBackend.close();
+        jedisPool.close();
+        stubRedisServer.close();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void publish() {
+        redisBackend.publish("paperboy-message", message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void publishAsyncBurst() {
+        CompletableFuture<?>[] futures = new CompletableFuture[BURST];
+        for (int i = 0; i < BURST; i++) {
+            futures[i] = redisBackend.publishAsync("paperboy-message", message);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+}
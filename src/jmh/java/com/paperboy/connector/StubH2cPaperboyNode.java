@@ -0,0 +1,91 @@
+package com.paperboy.connector;
+
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in of a paperboy node's REST endpoints speaking HTTP/1.1 and cleartext HTTP/2 (upgrade and prior
+ * knowledge), it accepts and discards every request, optionally after an injected latency.
+ */
+class StubH2cPaperboyNode implements AutoCloseable {
+
+    private static final byte[] INSTANCE_ID = "stub-instance".getBytes(StandardCharsets.UTF_8);
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong http2Requests = new AtomicLong();
+
+    StubH2cPaperboyNode() throws Exception {
+        this(Duration.ZERO);
+    }
+
+    StubH2cPaperboyNode(Duration latency) throws Exception {
+        server = new Server(new QueuedThreadPool(64));
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        connector = new ServerConnector(server, new HttpConnectionFactory(httpConfiguration), new HTTP2CServerConnectionFactory(httpConfiguration));
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                if (!latency.isZero()) {
+                    try {
+                        Thread.sleep(latency.toMillis());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if ("HTTP/2.0".equals(request.getProtocol())) {
+                    http2Requests.incrementAndGet();
+                }
+                if (target.equals("/instance")) {
+                    response.setStatus(200);
+                    response.setContentLength(INSTANCE_ID.length);
+                    response.getOutputStream().write(INSTANCE_ID);
+                    return;
+                }
+                try (InputStream in = request.getInputStream()) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                requests.incrementAndGet();
+                response.setStatus(200);
+            }
+        });
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + connector.getLocalPort();
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long http2Requests() {
+        return http2Requests.get();
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+    }
+
+}
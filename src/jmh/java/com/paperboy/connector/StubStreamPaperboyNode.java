@@ -0,0 +1,159 @@
+package com.paperboy.connector;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in of a paperboy node accepting REST publishes and {@link EmbeddedStream} connections on
+ * {@code /stream}. Streamed messages are counted and granted new credits, {@link #push(String, byte[])} sends a callback
+ * to the connected stream as long as it has granted credits.
+ */
+class StubStreamPaperboyNode implements AutoCloseable {
+
+    private static final byte[] INSTANCE_ID = "stub-instance".getBytes(StandardCharsets.UTF_8);
+    private static final int WINDOW = 1024;
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong streamedMessages = new AtomicLong();
+    private volatile StreamSocket socket;
+
+    StubStreamPaperboyNode() throws Exception {
+        server = new Server(new QueuedThreadPool(16));
+        connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        WebSocketHandler streamHandler = new WebSocketHandler() {
+            @Override
+            public void configure(WebSocketServletFactory factory) {
+                factory.getPolicy().setMaxBinaryMessageSize(1024 * 1024);
+                factory.setCreator((request, response) -> new StreamSocket());
+            }
+        };
+        streamHandler.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                if (target.equals("/instance")) {
+                    response.setStatus(200);
+                    response.setContentLength(INSTANCE_ID.length);
+                    response.getOutputStream().write(INSTANCE_ID);
+                    return;
+                }
+                try (InputStream in = request.getInputStream()) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                requests.incrementAndGet();
+                response.setStatus(200);
+            }
+        });
+        server.setHandler(streamHandler);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + connector.getLocalPort();
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long streamedMessages() {
+        return streamedMessages.get();
+    }
+
+    /**
+     * @return false when no stream is connected or it has not granted credits
+     */
+    boolean push(String topic, byte[] message) {
+        StreamSocket current = socket;
+        return current != null && current.push(topic, message);
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+    }
+
+    private class StreamSocket extends WebSocketAdapter {
+
+        private final AtomicInteger pushCredits = new AtomicInteger();
+        private int received;
+
+        @Override
+        public void onWebSocketConnect(Session session) {
+            super.onWebSocketConnect(session);
+            socket = this;
+            send(ByteBuffer.allocate(5).put(EmbeddedStream.CREDIT).putInt(WINDOW).flip());
+        }
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int len) {
+            ByteBuffer frame = ByteBuffer.wrap(payload, offset, len);
+            byte type = frame.get();
+            if (type == EmbeddedStream.CREDIT) {
+                pushCredits.addAndGet(frame.getInt());
+            } else if (type == EmbeddedStream.MESSAGE) {
+                streamedMessages.incrementAndGet();
+                if (++received == WINDOW / 2) {
+                    send(ByteBuffer.allocate(5).put(EmbeddedStream.CREDIT).putInt(received).flip());
+                    received = 0;
+                }
+            }
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+            super.onWebSocketClose(statusCode, reason);
+            if (socket == this) {
+                socket = null;
+            }
+        }
+
+        boolean push(String topic, byte[] message) {
+            if (pushCredits.getAndDecrement() <= 0) {
+                pushCredits.incrementAndGet();
+                return false;
+            }
+            byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            send(ByteBuffer.allocate(3 + topicBytes.length + message.length)
+                    .put(EmbeddedStream.MESSAGE)
+                    .putShort((short) topicBytes.length)
+                    .put(topicBytes)
+                    .put(message)
+                    .flip());
+            return true;
+        }
+
+        // blocking sends must not overlap
+        private synchronized void send(ByteBuffer frame) {
+            try {
+                getRemote().sendBytes(frame);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+    }
+
+}
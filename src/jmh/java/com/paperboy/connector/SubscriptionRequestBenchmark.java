@@ -0,0 +1,92 @@
+package com.paperboy.connector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of a "paperboy-subscription-request" as registered by {@link MessagingService#init()}: decoding, JWT
+ * verification, access check and publishing of the authorization, on a backend that discards publishes. Requests of
+ * 64 websockets are submitted round-robin, the bounded request queue turns the submit rate into the processing rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubscriptionRequestBenchmark {
+
+    private static final int WEBSOCKETS = 64;
+
+    @Param({"1", "4"})
+    public int workers;
+
+    private MessagingService messagingService;
+    private MessageHandler subscriptionRequestHandler;
+    private final String[] subscriptionRequests = new String[WEBSOCKETS];
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        PaperboyCallbackHandler callbackHandler = new PaperboyCallbackHandler() {
+            @Override
+            public void onSubscription(MessageSender msgSender, String userId, String channel) {
+            }
+
+            @Override
+            public boolean hasAccess(String userId, String channel) {
+                return true;
+            }
+        };
+        CountDownLatch listening = new CountDownLatch(1);
+        MessagingBackend backend = new MessagingBackend() {
+            @Override
+            public void init() {
+            }
+
+            @Override
+            public void publish(String topic, Object msg) {
+            }
+
+            @Override
+            public void listen(String queue, MessageHandler messageHandler) {
+                subscriptionRequestHandler = messageHandler;
+                listening.countDown();
+            }
+        };
+        AuthorizationTokenService authorizationTokenService = new AuthorizationTokenService(callbackHandler);
+        messagingService = new MessagingService(backend, authorizationTokenService, callbackHandler);
+        messagingService.setSubscriptionWorkers(workers);
+        messagingService.init();
+        listening.await();
+        String token = authorizationTokenService.generateToken("user-1", "channel-1");
+        for (int i = 0; i < WEBSOCKETS; i++) {
+            subscriptionRequests[i] = new String(JsonMessageCodec.shared().encode(new AuthorizationMessage("ws-" + i, token, null, null)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        messagingService.close();
+    }
+
+    @Benchmark
+    public void handleSubscriptionRequest() {
+        next = (next + 1) % WEBSOCKETS;
+        subscriptionRequestHandler.handleMessage("paperboy-subscription-request", subscriptionRequests[next]);
+    }
+
+}
@@ -1,20 +1,284 @@
 package com.paperboy.connector;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.AmazonSNSAsyncClientBuilder;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.util.Topics;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Amazon SNS backend. Topics are resolved by name (or given as ARN) and messages are published in batches of up to
+ * 10 with PublishBatch. A queue is listened to through the SQS queue of the same name, which is subscribed to the SNS
+ * topic of the same name with raw message delivery and is shared by the connector instances. Binary codecs are sent
+ * Base64 encoded, as SNS messages are text.
+ * <p>
+ * The clients can be configured with a custom endpoint, e.g. to run against a local stand-in.
+ */
 public class AmazonSnsBackend implements MessagingBackend {
 
+    private static final Log LOG = LogFactory.getLog(AmazonSnsBackend.class);
+
+    private static final String CONTENT_TYPE_ATTRIBUTE = "content-type";
+    private static final String CONTENT_ENCODING_ATTRIBUTE = "content-encoding";
+    private static final String BASE64_ENCODING = "base64";
+    private static final Duration DEFAULT_PUBLISH_LINGER = Duration.ofMillis(10);
+    private static final int MAX_RECEIVE_MESSAGES = 10;
+    // long polling, also bounds how long close() waits for the pollers
+    private static final int RECEIVE_WAIT_SECONDS = 20;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(5);
+
+    private final AmazonSNSAsync sns;
+    private final AmazonSQS sqs;
+    private final boolean ownsClients;
+    private final MessageCodec messageCodec;
+    private final Map<String, MessageAttributeValue> messageAttributes;
+    private final Map<String, String> topicArns = new ConcurrentHashMap<>();
+    private final ExecutorService pollerExecutor = Executors.newCachedThreadPool();
+    private volatile boolean running = true;
+
+    private int publishBatchSize = SnsPublishBatcher.MAX_BATCH_SIZE;
+    private Duration publishLinger = DEFAULT_PUBLISH_LINGER;
+    private int pollersPerQueue = 1;
+    private int handlerThreads = Runtime.getRuntime().availableProcessors();
+    private SnsPublishBatcher publishBatcher;
+    private ExecutorService handlerExecutor;
+
+    /**
+     * Uses clients built from the default AWS configuration (region, credentials), they are shut down on close.
+     */
+    public AmazonSnsBackend() {
+        this(AmazonSNSAsyncClientBuilder.defaultClient(), AmazonSQSClientBuilder.defaultClient(), JsonMessageCodec.shared(), true);
+    }
+
+    public AmazonSnsBackend(AmazonSNSAsync sns, AmazonSQS sqs) {
+        this(sns, sqs, JsonMessageCodec.shared());
+    }
+
+    public AmazonSnsBackend(AmazonSNSAsync sns, AmazonSQS sqs, MessageCodec messageCodec) {
+        this(sns, sqs, messageCodec, false);
+    }
+
+    private AmazonSnsBackend(AmazonSNSAsync sns, AmazonSQS sqs, MessageCodec messageCodec, boolean ownsClients) {
+        this.sns = sns;
+        this.sqs = sqs;
+        this.ownsClients = ownsClients;
+        this.messageCodec = messageCodec;
+        this.messageAttributes = new HashMap<>();
+        this.messageAttributes.put(CONTENT_TYPE_ATTRIBUTE, stringAttribute(messageCodec.contentType()));
+        if (messageCodec.isBinary()) {
+            this.messageAttributes.put(CONTENT_ENCODING_ATTRIBUTE, stringAttribute(BASE64_ENCODING));
+        }
+    }
+
+    private static MessageAttributeValue stringAttribute(String value) {
+        return new MessageAttributeValue().withDataType("String").withStringValue(value);
+    }
+
+    public int getPublishBatchSize() {
+        return publishBatchSize;
+    }
+
+    /**
+     * Max number of messages per PublishBatch call (1 - 10), should be set before {@link #init()}.
+     *
+     * @param publishBatchSize messages per batch
+     */
+    public void setPublishBatchSize(int publishBatchSize) {
+        this.publishBatchSize = publishBatchSize;
+    }
+
+    public Duration getPublishLinger() {
+        return publishLinger;
+    }
+
+    /**
+     * Max time a published message waits for more messages to the same topic, should be set before {@link #init()}.
+     *
+     * @param publishLinger linger time of a batch
+     */
+    public void setPublishLinger(Duration publishLinger) {
+        this.publishLinger = publishLinger;
+    }
+
+    public int getPollersPerQueue() {
+        return pollersPerQueue;
+    }
+
+    /**
+     * Number of threads long polling each listened SQS queue, should be set before listening.
+     *
+     * @param pollersPerQueue number of pollers
+     */
+    public void setPollersPerQueue(int pollersPerQueue) {
+        this.pollersPerQueue = pollersPerQueue;
+    }
+
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    /**
+     * Number of threads the messages of a received batch are handled on in parallel, should be set before
+     * {@link #init()}.
+     *
+     * @param handlerThreads number of handler threads
+     */
+    public void setHandlerThreads(int handlerThreads) {
+        this.handlerThreads = handlerThreads;
+    }
+
     @Override
     public void init() {
+        publishBatcher = new SnsPublishBatcher(sns, publishBatchSize, publishLinger);
+        handlerExecutor = Executors.newFixedThreadPool(handlerThreads);
+    }
 
+    @Override
+    public void close() {
+        running = false;
+        // the batches flushed now have to be sent before the clients are shut down
+        if (publishBatcher != null && !publishBatcher.close(CLOSE_TIMEOUT)) {
+            LOG.warn("SNS publish batches were not completed in time!");
+        }
+        pollerExecutor.shutdown();
+        try {
+            if (!pollerExecutor.awaitTermination(RECEIVE_WAIT_SECONDS + 5, TimeUnit.SECONDS)) {
+                LOG.warn("SQS pollers did not stop in time!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (handlerExecutor != null) {
+            handlerExecutor.shutdown();
+        }
+        if (ownsClients) {
+            sns.shutdown();
+            sqs.shutdown();
+        }
     }
 
+    /**
+     * Waits until the batch containing the message has been accepted by SNS.
+     */
     @Override
     public void publish(String topic, Object msg) {
+        try {
+            publishAsync(topic, msg).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * The returned future completes once the batch containing the message has been accepted by SNS.
+     */
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        try {
+            return publishBatcher.add(topicArn(topic), toEntry(msg));
+        } catch (IllegalArgumentException | AmazonClientException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
+    private PublishBatchRequestEntry toEntry(Object msg) {
+        byte[] body = EncodedMessage.encode(messageCodec, msg);
+        String message = messageCodec.isBinary() ? Base64.getEncoder().encodeToString(body) : new String(body, StandardCharsets.UTF_8);
+        return new PublishBatchRequestEntry().withMessage(message).withMessageAttributes(messageAttributes);
     }
 
+    private String topicArn(String topic) {
+        if (topic.startsWith("arn:")) {
+            return topic;
+        }
+        // CreateTopic is idempotent and returns the ARN of an existing topic
+        return topicArns.computeIfAbsent(topic, k -> sns.createTopic(k).getTopicArn());
+    }
+
+    /**
+     * Creates the SQS queue, subscribes it to the topic and starts the pollers on dedicated threads.
+     */
     @Override
     public void listen(String queue, MessageHandler messageHandler) {
+        String queueUrl = sqs.createQueue(queue).getQueueUrl();
+        String subscriptionArn = Topics.subscribeQueue(sns, sqs, topicArn(queue), queueUrl, true);
+        // the queue receives the published message itself instead of the SNS notification envelope
+        sns.setSubscriptionAttributes(subscriptionArn, "RawMessageDelivery", "true");
+        LOG.info(String.format("Starting %d poller(s) on SQS queue '%s'.", pollersPerQueue, queue));
+        for (int i = 0; i < pollersPerQueue; i++) {
+            pollerExecutor.submit(() -> poll(queue, queueUrl, messageHandler));
+        }
+    }
+
+    private void poll(String queue, String queueUrl, MessageHandler messageHandler) {
+        ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                .withMaxNumberOfMessages(MAX_RECEIVE_MESSAGES)
+                .withWaitTimeSeconds(RECEIVE_WAIT_SECONDS)
+                .withMessageAttributeNames(CONTENT_TYPE_ATTRIBUTE, CONTENT_ENCODING_ATTRIBUTE);
+        while (running) {
+            try {
+                List<com.amazonaws.services.sqs.model.Message> messages = sqs.receiveMessage(request).getMessages();
+                if (messages.isEmpty()) {
+                    continue;
+                }
+                List<CompletableFuture<Void>> handled = new ArrayList<>(messages.size());
+                List<DeleteMessageBatchRequestEntry> deletes = new ArrayList<>(messages.size());
+                for (com.amazonaws.services.sqs.model.Message message : messages) {
+                    handled.add(CompletableFuture.runAsync(() -> handle(queue, messageHandler, message), handlerExecutor));
+                    deletes.add(new DeleteMessageBatchRequestEntry(Integer.toString(deletes.size()), message.getReceiptHandle()));
+                }
+                CompletableFuture.allOf(handled.toArray(new CompletableFuture[0])).join();
+                DeleteMessageBatchResult result = sqs.deleteMessageBatch(queueUrl, deletes);
+                if (!result.getFailed().isEmpty()) {
+                    LOG.warn(String.format("Could not delete %d message(s) from SQS queue '%s', they will be received again.", result.getFailed().size(), queue));
+                }
+            } catch (RuntimeException e) {
+                LOG.error(String.format("Error while polling SQS queue '%s', retrying...", queue), e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
 
+    private void handle(String queue, MessageHandler messageHandler, com.amazonaws.services.sqs.model.Message message) {
+        try {
+            Map<String, com.amazonaws.services.sqs.model.MessageAttributeValue> attributes = message.getMessageAttributes();
+            com.amazonaws.services.sqs.model.MessageAttributeValue contentType = attributes.get(CONTENT_TYPE_ATTRIBUTE);
+            com.amazonaws.services.sqs.model.MessageAttributeValue contentEncoding = attributes.get(CONTENT_ENCODING_ATTRIBUTE);
+            byte[] body = contentEncoding != null && BASE64_ENCODING.equals(contentEncoding.getStringValue())
+                    ? Base64.getDecoder().decode(message.getBody())
+                    : message.getBody().getBytes(StandardCharsets.UTF_8);
+            messageHandler.handleMessage(queue, body, contentType != null ? contentType.getStringValue() : null);
+        } catch (RuntimeException e) {
+            LOG.error(String.format("Error while handling message from queue '%s'!", queue), e);
+        }
     }
 
 }
@@ -7,17 +7,30 @@ import com.auth0.jwt.interfaces.DecodedJWT;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateUtils;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
 import java.util.Date;
+import java.util.Objects;
 
 public class AuthorizationTokenService {
 
     private static final String JWT_SECRET_ENV_KEY = "PAPERBOY_JWT_SECRET";
     private static final String JWT_ISSUER = "paperboy";
+    private static final int DEFAULT_TOKEN_CACHE_SIZE = 10_000;
+    private static final int DEFAULT_ACCESS_CACHE_SIZE = 10_000;
 
     private final PaperboyCallbackHandler paperboyCallbackHandler;
     private final Algorithm algorithm;
     private final JWTVerifier jwtVerifier;
 
+    private volatile ExpiringCache<String, VerifiedToken> tokenCache = new ExpiringCache<>(DEFAULT_TOKEN_CACHE_SIZE);
+    private volatile ExpiringCache<AccessKey, Boolean> accessCache = new ExpiringCache<>(DEFAULT_ACCESS_CACHE_SIZE);
+    private volatile Duration accessCacheTtl = Duration.ZERO;
+    private volatile ConnectorMetrics metrics = ConnectorMetrics.NOOP;
+
     public AuthorizationTokenService(PaperboyCallbackHandler paperboyCallbackHandler) {
         String secret = System.getenv(JWT_SECRET_ENV_KEY);
         if (StringUtils.isBlank(secret)) {
@@ -31,6 +44,58 @@ public class AuthorizationTokenService {
                 .build();
     }
 
+    /**
+     * Max number of verified tokens kept, so reconnecting clients skip the signature verification. Entries are evicted
+     * when the token expires, 0 disables the cache.
+     *
+     * @param tokenCacheSize max number of cached tokens
+     */
+    public void setTokenCacheSize(int tokenCacheSize) {
+        this.tokenCache = new ExpiringCache<>(tokenCacheSize);
+    }
+
+    /**
+     * Max number of cached {@link PaperboyCallbackHandler#hasAccess(String, String)} results.
+     *
+     * @param accessCacheSize max number of cached access checks
+     */
+    public void setAccessCacheSize(int accessCacheSize) {
+        this.accessCache = new ExpiringCache<>(accessCacheSize);
+    }
+
+    public void setMetrics(ConnectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Duration getAccessCacheTtl() {
+        return accessCacheTtl;
+    }
+
+    /**
+     * How long a granted {@link PaperboyCallbackHandler#hasAccess(String, String)} result is reused for subscriptions,
+     * zero (the default) disables caching. Revoked access should be signalled with {@link #invalidateAccess(String, String)}
+     * (done by {@link PaperboyConnector#closeSubscription(String, String)}), otherwise it is picked up after the TTL.
+     *
+     * @param accessCacheTtl time to live of a cached access check
+     */
+    public void setAccessCacheTtl(Duration accessCacheTtl) {
+        this.accessCacheTtl = accessCacheTtl;
+    }
+
+    /**
+     * Evicts cached access checks, null matches any user/channel.
+     *
+     * @param userId  user id or null
+     * @param channel channel or null
+     */
+    public void invalidateAccess(String userId, String channel) {
+        if (userId != null && channel != null) {
+            accessCache.invalidate(new AccessKey(userId, channel));
+        } else {
+            accessCache.invalidateIf(k -> (userId == null || userId.equals(k.userId)) && (channel == null || channel.equals(k.channel)));
+        }
+    }
+
     public String generateToken(String userId, String channel) {
         if (!paperboyCallbackHandler.hasAccess(userId, channel)) {
             throw new IllegalStateException(String.format("Access to channel '%s' for user '%s' is denied!", channel, userId));
@@ -50,14 +115,109 @@ public class AuthorizationTokenService {
     }
 
     AuthorizationMessage authorize(String token, String wsId) {
-        DecodedJWT jwt = jwtVerifier.verify(token);
-        String userId = jwt.getClaim("userId").asString();
-        String channel = jwt.getClaim("channel").asString();
-        if (!paperboyCallbackHandler.hasAccess(userId, channel)) {
+        ConnectorMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        VerifiedToken verifiedToken;
+        try {
+            verifiedToken = verify(token);
+        } catch (RuntimeException e) {
+            metrics.tokenVerified(System.nanoTime() - start, false);
+            throw e;
+        }
+        long verified = System.nanoTime();
+        metrics.tokenVerified(verified - start, true);
+        String userId = verifiedToken.userId;
+        String channel = verifiedToken.channel;
+        boolean granted = hasAccess(userId, channel);
+        metrics.accessChecked(System.nanoTime() - verified, granted);
+        if (!granted) {
             throw new IllegalStateException(String.format("Access to channel '%s' for user '%s' denied!", channel, userId));
         }
 
         return new AuthorizationMessage(wsId, null, userId, channel);
     }
 
+    private VerifiedToken verify(String token) {
+        ExpiringCache<String, VerifiedToken> tokenCache = this.tokenCache;
+        // the cache is keyed by a digest of the full token (signature included), so it does not hold usable tokens,
+        // and its entries expire together with the token
+        String key = digest(token);
+        VerifiedToken verifiedToken = tokenCache.get(key);
+        if (verifiedToken == null) {
+            DecodedJWT jwt = jwtVerifier.verify(token);
+            verifiedToken = new VerifiedToken(jwt.getClaim("userId").asString(), jwt.getClaim("channel").asString());
+            if (jwt.getExpiresAt() != null) {
+                tokenCache.put(key, verifiedToken, jwt.getExpiresAt().getTime());
+            }
+        }
+        return verifiedToken;
+    }
+
+    private static String digest(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+    }
+
+    private boolean hasAccess(String userId, String channel) {
+        Duration ttl = this.accessCacheTtl;
+        if (ttl.isZero()) {
+            return paperboyCallbackHandler.hasAccess(userId, channel);
+        }
+        AccessKey key = new AccessKey(userId, channel);
+        ExpiringCache<AccessKey, Boolean> accessCache = this.accessCache;
+        if (accessCache.get(key) != null) {
+            return true;
+        }
+        boolean hasAccess = paperboyCallbackHandler.hasAccess(userId, channel);
+        if (hasAccess) {
+            // only granted access is cached, so a grant is never delayed
+            accessCache.put(key, Boolean.TRUE, System.currentTimeMillis() + ttl.toMillis());
+        }
+        return hasAccess;
+    }
+
+    private static class VerifiedToken {
+
+        private final String userId;
+        private final String channel;
+
+        VerifiedToken(String userId, String channel) {
+            this.userId = userId;
+            this.channel = channel;
+        }
+    }
+
+    private static class AccessKey {
+
+        private final String userId;
+        private final String channel;
+
+        AccessKey(String userId, String channel) {
+            this.userId = userId;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            AccessKey accessKey = (AccessKey) o;
+            return Objects.equals(userId, accessKey.userId) && Objects.equals(channel, accessKey.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, channel);
+        }
+    }
+
 }
@@ -0,0 +1,77 @@
+package com.paperboy.connector;
+
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Binary CBOR codec (RFC 7049), requires {@code com.fasterxml.jackson.dataformat:jackson-dataformat-cbor} on the
+ * classpath. The content type is carried in the message properties/attributes/headers, so it should only be used with
+ * backends supporting them (RabbitMQ, Google Pub/Sub, embedded backend).
+ */
+public class CborMessageCodec extends JacksonMessageCodec {
+
+    public static final String CONTENT_TYPE = "application/cbor";
+
+    public CborMessageCodec() {
+        this(new CBORMapper());
+    }
+
+    /**
+     * @param cborMapper configured mapper, it must not be reconfigured afterwards
+     */
+    public CborMessageCodec(CBORMapper cborMapper) {
+        super(cborMapper);
+    }
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public byte[] encodeArray(List<byte[]> encodedMessages) {
+        // a definite-length CBOR array is a header holding the item count followed by the items
+        int count = encodedMessages.size();
+        int headerLength = count < 24 ? 1 : count < 0x100 ? 2 : count < 0x10000 ? 3 : 5;
+        int length = headerLength;
+        for (byte[] encodedMessage : encodedMessages) {
+            length += encodedMessage.length;
+        }
+        byte[] array = new byte[length];
+        int pos = 0;
+        if (headerLength == 1) {
+            array[pos++] = (byte) (0x80 | count);
+        } else if (headerLength == 2) {
+            array[pos++] = (byte) 0x98;
+            array[pos++] = (byte) count;
+        } else if (headerLength == 3) {
+            array[pos++] = (byte) 0x99;
+            array[pos++] = (byte) (count >> 8);
+            array[pos++] = (byte) count;
+        } else {
+            array[pos++] = (byte) 0x9a;
+            array[pos++] = (byte) (count >> 24);
+            array[pos++] = (byte) (count >> 16);
+            array[pos++] = (byte) (count >> 8);
+            array[pos++] = (byte) count;
+        }
+        for (byte[] encodedMessage : encodedMessages) {
+            System.arraycopy(encodedMessage, 0, array, pos, encodedMessage.length);
+            pos += encodedMessage.length;
+        }
+        return array;
+    }
+
+    @Override
+    public <T> T decode(String data, Class<T> type) throws IOException {
+        throw new IOException("CBOR messages cannot be decoded from text!");
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.paperboy.connector;
+
+/**
+ * For payloads carrying a state snapshot (e.g. a price or presence), where only the latest one matters. Payloads sent
+ * to a channel within a conflation interval are conflated per channel and conflation key, only the result is
+ * published once the interval has passed.
+ */
+public interface ConflatedPayload extends Payload {
+
+    /**
+     * @return key of the state this payload belongs to (e.g. an instrument id), null for a single state per channel
+     */
+    String conflationKey();
+
+    /**
+     * Conflates a payload with the one sent before it within the same interval.
+     *
+     * @param previous payload of the same channel and conflation key sent before this one
+     * @return payload to publish instead of both, this one by default
+     */
+    default Payload conflate(Payload previous) {
+        return this;
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.paperboy.connector;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Instrumentation callbacks of the connector, every method is a no-op by default. Implementations are called on the
+ * publishing threads, so they should record without allocating or blocking (see {@link MicrometerConnectorMetrics}).
+ * Durations are in nanoseconds.
+ */
+public interface ConnectorMetrics {
+
+    ConnectorMetrics NOOP = new ConnectorMetrics() {
+    };
+
+    /**
+     * Called when the backend has accepted a message (for asynchronous publishes, once the returned future completed).
+     */
+    default void published(String backend, String topic, long durationNanos) {
+    }
+
+    default void publishFailed(String backend, String topic, long durationNanos, Throwable error) {
+    }
+
+    /**
+     * Called by {@link MeteredMessageCodec} when a message has been serialized.
+     */
+    default void encoded(long durationNanos, int bytes) {
+    }
+
+    /**
+     * Called when a subscription token has been verified (cached or not).
+     */
+    default void tokenVerified(long durationNanos, boolean valid) {
+    }
+
+    /**
+     * Called when the access of a subscription has been checked (cached or not).
+     */
+    default void accessChecked(long durationNanos, boolean granted) {
+    }
+
+    /**
+     * Called when a message is skipped because nobody is subscribed to its channel or user, see
+     * {@link MessagingService#setSubscriptionTracking(boolean)}.
+     *
+     * @param channel true for a message to a channel, false for one to a user
+     */
+    default void messageSkipped(boolean channel) {
+    }
+
+    /**
+     * Called once on {@link MessagingService#init()} to bind the number of subscription requests queued or in process.
+     */
+    default void bindSubscriptionQueue(IntSupplier pendingRequests) {
+    }
+
+    /**
+     * Called when mDNS has resolved an embedded node, with the time since the node was announced and the number of
+     * known nodes afterwards.
+     */
+    default void embeddedDiscoveryCompleted(long durationNanos, int nodeCount) {
+    }
+
+    /**
+     * Called once on {@link EmbeddedBackend#init()} to bind the number of known embedded nodes.
+     */
+    default void bindEmbeddedNodes(IntSupplier nodeCount) {
+    }
+
+    /**
+     * Called when a listener is moved off an unreachable embedded node.
+     *
+     * @param fromNode node the listener was registered on
+     * @param toNode   node the listener is moved to, null when no other node could be used
+     */
+    default void embeddedFailover(String fromNode, String toNode) {
+    }
+
+}
@@ -1,103 +1,679 @@
 package com.paperboy.connector;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
 import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class EmbeddedBackend implements MessagingBackend {
 
     private static final Log LOG = LogFactory.getLog(EmbeddedBackend.class);
 
+    private static final String SERVICE_TYPE = "_paperboy-http._tcp.local.";
+
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    private static final int DEFAULT_MAX_IN_FLIGHT_PER_NODE = 64;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final Duration DEFAULT_BATCH_LINGER = Duration.ofMillis(5);
+    private static final Duration DEFAULT_ACTIVITY_LOG_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration DEFAULT_KEEP_ALIVE_INTERVAL = Duration.ofSeconds(30);
+    private static final int DEFAULT_STREAM_WINDOW = 256;
+    private static final Duration DEFAULT_HEALTH_CHECK_INTERVAL = Duration.ofSeconds(2);
+    private static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final Duration DEFAULT_CIRCUIT_OPEN_DURATION = Duration.ofSeconds(5);
+    private static final Duration MIN_HEDGE_DELAY = Duration.ofMillis(5);
+
     private final Map<String, MessageHandler> messageHandlers = new ConcurrentHashMap<>();
-    private List<String> embeddedBackendServices = new ArrayList<>();
-    private final AtomicInteger embeddedBackendServiceIdx = new AtomicInteger(0);
+    // immutable snapshot, replaced as a whole whenever nodes come or go
+    private volatile List<String> embeddedBackendServices = List.of();
+    private final Map<String, String> discoveredServices = new ConcurrentHashMap<>();
+    private final Map<String, Long> pendingResolutions = new ConcurrentHashMap<>();
+    private final Map<String, EmbeddedNodeRequestLimiter> requestLimiters = new ConcurrentHashMap<>();
+    private final Map<String, EmbeddedNodePublishPath> publishPaths = new ConcurrentHashMap<>();
+    private final Map<String, EmbeddedNodeCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    private List<String> seedServices = List.of();
+    private boolean discoveryEnabled = true;
+    private String callbackAddress;
+    private Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private HttpClient.Version httpVersion = HttpClient.Version.HTTP_2;
+    private Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private Duration keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+    private Duration healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+    private NodeSelector nodeSelector = new RoundRobinNodeSelector();
+    private int circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+    private Duration circuitOpenDuration = DEFAULT_CIRCUIT_OPEN_DURATION;
+    private boolean hedgingEnabled = false;
+    private RequestHedger instanceHedger;
+    private int maxInFlightPerNode = DEFAULT_MAX_IN_FLIGHT_PER_NODE;
+    private boolean batchingEnabled = false;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Duration batchLinger = DEFAULT_BATCH_LINGER;
+    private boolean streamingEnabled = false;
+    private String streamPath = "/stream";
+    private int streamWindow = DEFAULT_STREAM_WINDOW;
+    private EmbeddedMessageBatcher batcher;
+    private ConnectorMetrics metrics = ConnectorMetrics.NOOP;
+    private volatile TopicActivityLog publishLog = new TopicActivityLog(LOG, "Published", DEFAULT_ACTIVITY_LOG_INTERVAL);
+    private volatile TopicActivityLog callbackLog = new TopicActivityLog(LOG, "Received", DEFAULT_ACTIVITY_LOG_INTERVAL);
 
     private String localAddress;
     private HttpClient httpClient;
     private String embeddedBackendToken;
-    private ObjectMapper objectMapper;
+    private final MessageCodec messageCodec;
     private ScheduledExecutorService serviceDiscoveryExecutor;
     private ScheduledExecutorService listenerExecutor;
+    // queue -> node its subscription is registered on (null while unbound), only touched by the listener executor
+    private final Map<String, String> queueBindings = new HashMap<>();
+    // queues with a subscription request in flight, only touched by the listener executor
+    private final Set<String> pendingBinds = new HashSet<>();
+    private EmbeddedNodeHealthMonitor healthMonitor;
+    private JmDNS jmdns;
 
     public EmbeddedBackend(String embeddedBackendToken) {
+        this(embeddedBackendToken, JsonMessageCodec.shared());
+    }
+
+    public EmbeddedBackend(String embeddedBackendToken, MessageCodec messageCodec) {
         this.embeddedBackendToken = embeddedBackendToken;
+        this.messageCodec = messageCodec;
         this.serviceDiscoveryExecutor = Executors.newScheduledThreadPool(1);
         this.listenerExecutor = Executors.newScheduledThreadPool(1);
     }
 
+    public List<String> getSeedServices() {
+        return seedServices;
+    }
+
+    /**
+     * Nodes known in advance, e.g. {@code http://paperboy-1:8080} (should be set before {@link #init()}). They are
+     * usable as soon as {@link #init()} returns and are never removed, nodes found by mDNS are added to them.
+     *
+     * @param seedServices base URLs of the nodes
+     */
+    public void setSeedServices(Collection<String> seedServices) {
+        this.seedServices = List.copyOf(seedServices);
+    }
+
+    public boolean isDiscoveryEnabled() {
+        return discoveryEnabled;
+    }
+
+    /**
+     * Enables mDNS discovery of the nodes (should be set before {@link #init()}), on by default. It can be turned off
+     * when all nodes are given as {@link #setSeedServices(Collection) seed services}.
+     *
+     * @param discoveryEnabled false to only use the seed services
+     */
+    public void setDiscoveryEnabled(boolean discoveryEnabled) {
+        this.discoveryEnabled = discoveryEnabled;
+    }
+
+    public String getCallbackAddress() {
+        return callbackAddress;
+    }
+
+    /**
+     * Address the nodes call the application back on, also the interface mDNS runs on (should be set before
+     * {@link #init()}). By default the first non-loopback IPv4 address of the host.
+     *
+     * @param callbackAddress host name or IP address of this instance
+     */
+    public void setCallbackAddress(String callbackAddress) {
+        this.callbackAddress = callbackAddress;
+    }
+
+    public Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Timeout applied to every HTTP request sent to an embedded node (should be set before {@link #init()}).
+     *
+     * @param requestTimeout per-request timeout
+     */
+    public void setRequestTimeout(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public HttpClient.Version getHttpVersion() {
+        return httpVersion;
+    }
+
+    /**
+     * HTTP version used towards the embedded nodes (should be set before {@link #init()}). With HTTP/2 (the default)
+     * each node's connection is upgraded to cleartext HTTP/2 by a GET request when the node is discovered, after which
+     * all requests to the node are multiplexed over that single connection. Nodes not supporting HTTP/2 are talked to
+     * over HTTP/1.1 with a connection per concurrent request.
+     *
+     * @param httpVersion preferred HTTP version
+     */
+    public void setHttpVersion(HttpClient.Version httpVersion) {
+        this.httpVersion = httpVersion;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Timeout of establishing a connection to an embedded node (should be set before {@link #init()}).
+     *
+     * @param connectTimeout connect timeout
+     */
+    public void setConnectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Duration getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Interval of the GET requests sent to every node to keep idle connections open and re-establish HTTP/2 after a
+     * connection was lost (should be set before {@link #init()}), zero disables them.
+     *
+     * @param keepAliveInterval keep-alive interval
+     */
+    public void setKeepAliveInterval(Duration keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    public Duration getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    /**
+     * Interval the nodes are checked at by their instance id once the first queue is listened on (should be set before
+     * {@link #init()}). Every node is checked once per interval however many queues are bound to it; the queues of a
+     * restarted node are subscribed again, the ones of a failed node are moved to other nodes together.
+     *
+     * @param healthCheckInterval health check interval
+     */
+    public void setHealthCheckInterval(Duration healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    public NodeSelector getNodeSelector() {
+        return nodeSelector;
+    }
+
+    /**
+     * Strategy picking the node a queue is subscribed on, also when its node failed (should be set before
+     * {@link #init()}). Round-robin by default; {@link LeastOutstandingNodeSelector} and {@link EwmaNodeSelector} prefer
+     * idle and fast nodes, measured by the subscription and health check requests.
+     *
+     * @param nodeSelector node selection strategy
+     */
+    public void setNodeSelector(NodeSelector nodeSelector) {
+        this.nodeSelector = nodeSelector;
+    }
+
+    public int getCircuitFailureThreshold() {
+        return circuitFailureThreshold;
+    }
+
+    /**
+     * Number of consecutive failed requests after which the circuit of a node opens (should be set before
+     * {@link #init()}). Requests to a node with an open circuit fail at once without being sent, so publishers do not
+     * wait for a hanging node; after {@link #getCircuitOpenDuration()} a single trial request decides whether it closes
+     * again. Nodes with an open circuit are not picked for subscriptions.
+     *
+     * @param circuitFailureThreshold consecutive failures opening the circuit
+     */
+    public void setCircuitFailureThreshold(int circuitFailureThreshold) {
+        if (circuitFailureThreshold < 1) {
+            throw new IllegalArgumentException("The failure threshold must be at least 1!");
+        }
+        this.circuitFailureThreshold = circuitFailureThreshold;
+    }
+
+    public Duration getCircuitOpenDuration() {
+        return circuitOpenDuration;
+    }
+
+    public void setCircuitOpenDuration(Duration circuitOpenDuration) {
+        this.circuitOpenDuration = circuitOpenDuration;
+    }
+
+    public boolean isHedgingEnabled() {
+        return hedgingEnabled;
+    }
+
+    /**
+     * Enables hedging of the instance id lookups (should be set before {@link #init()}). When a lookup has not completed
+     * within the 95th percentile of the recent ones, it is sent to the node a second time and the first response is
+     * used. Subscriptions are not hedged, as a node is not known to ignore a second registration of the same callback.
+     *
+     * @param hedgingEnabled true to hedge slow requests
+     */
+    public void setHedgingEnabled(boolean hedgingEnabled) {
+        this.hedgingEnabled = hedgingEnabled;
+    }
+
+    public int getMaxInFlightPerNode() {
+        return maxInFlightPerNode;
+    }
+
+    /**
+     * Upper bound of concurrent publish requests per embedded node (should be set before {@link #init()}). Requests over
+     * the limit are queued without blocking the publisher, and fail for the node when no slot got free within
+     * {@link #getRequestTimeout()}. It is the max number of concurrent streams over HTTP/2 (should not exceed the node's
+     * limit), and of connections over HTTP/1.1.
+     *
+     * @param maxInFlightPerNode max concurrent requests per node
+     */
+    public void setMaxInFlightPerNode(int maxInFlightPerNode) {
+        this.maxInFlightPerNode = maxInFlightPerNode;
+    }
+
+    public boolean isBatchingEnabled() {
+        return batchingEnabled;
+    }
+
+    /**
+     * Enables batched publishing (should be set before {@link #init()}). Messages are collected per node and topic, and
+     * sent as a single JSON array to the node's {@code /pushMessages/{topic}} endpoint once {@link #getBatchSize()}
+     * messages are collected or {@link #getBatchLinger()} has passed. The node has to process the array in order.
+     *
+     * @param batchingEnabled true to batch publishes
+     */
+    public void setBatchingEnabled(boolean batchingEnabled) {
+        this.batchingEnabled = batchingEnabled;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Duration getBatchLinger() {
+        return batchLinger;
+    }
+
+    public void setBatchLinger(Duration batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+
+    public boolean isStreamingEnabled() {
+        return streamingEnabled;
+    }
+
+    /**
+     * Enables a persistent WebSocket per node (should be set before {@link #init()}), opened on
+     * {@link #getStreamPath()} when the node is discovered. Publishes are sent over it instead of single POST requests,
+     * and the node can deliver callbacks over it instead of calling {@code /messageCallback/{topic}}. See
+     * {@link EmbeddedStream} for the frames. Both sides grant the other credits of {@link #getStreamWindow()} messages,
+     * publishes fall back to REST (batched when enabled) while the stream is down or out of credits. A node switches
+     * between the two only after the sends on the previous path have completed, so its messages stay in order.
+     * <p>
+     * Stream frames are not acknowledged: a publish completes when its frame has been written, and frames written just
+     * before a connection loss can be lost (at-most-once), while REST publishes complete on the node's response.
+     *
+     * @param streamingEnabled true to open streams to the nodes
+     */
+    public void setStreamingEnabled(boolean streamingEnabled) {
+        this.streamingEnabled = streamingEnabled;
+    }
+
+    public String getStreamPath() {
+        return streamPath;
+    }
+
+    public void setStreamPath(String streamPath) {
+        this.streamPath = streamPath;
+    }
+
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    /**
+     * Number of callbacks a node may send over the stream before it has to wait for new credits, which are granted as
+     * the callbacks are handled (should be set before {@link #init()}).
+     *
+     * @param streamWindow credits granted to a node
+     */
+    public void setStreamWindow(int streamWindow) {
+        if (streamWindow < 2) {
+            throw new IllegalArgumentException("The stream window must be at least 2!");
+        }
+        this.streamWindow = streamWindow;
+    }
+
+    /**
+     * Interval of the per-topic summaries of published and received messages logged at INFO level (one minute by
+     * default), zero disables them. Single messages are only logged at DEBUG level.
+     *
+     * @param activityLogInterval min time between two summaries of a topic
+     */
+    public void setActivityLogInterval(Duration activityLogInterval) {
+        this.publishLog = new TopicActivityLog(LOG, "Published", activityLogInterval);
+        this.callbackLog = new TopicActivityLog(LOG, "Received", activityLogInterval);
+    }
+
+    public ConnectorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Metrics the discovery and the failovers of listeners are reported to (should be set before {@link #init()}).
+     *
+     * @param metrics metrics implementation
+     */
+    public void setMetrics(ConnectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void close() {
+        if (batcher != null) {
+            batcher.close();
+        }
+        publishPaths.values().forEach(EmbeddedNodePublishPath::close);
+        // queued behind a discovery still starting up
+        serviceDiscoveryExecutor.execute(this::stopDiscovery);
         serviceDiscoveryExecutor.shutdown();
         listenerExecutor.shutdown();
     }
 
+    /**
+     * Returns at once, with the seed services usable. Nodes found by mDNS are added (and removed) in the background as
+     * they announce themselves.
+     */
     @Override
     public void init() {
         try {
             LOG.info("Initializing embedded backend...");
-            httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
-            try (final DatagramSocket socket = new DatagramSocket()) {
-                socket.connect(InetAddress.getByName("8.8.8.8"), 10002);
-                // we need a real local address for callbacks (url pointing to a rest endpoint on the webapp is sent to the embedded backend for callbacks)
-                // should be wired onto this.messageCallback(topic, msg, providedEmbeddedBackendToken)
-                localAddress = socket.getLocalAddress().getHostAddress();
+            // we need a real local address for callbacks (url pointing to a rest endpoint on the webapp is sent to the embedded backend for callbacks)
+            // should be wired onto this.messageCallback(topic, msg, providedEmbeddedBackendToken)
+            InetAddress address = callbackAddress != null ? InetAddress.getByName(callbackAddress) : defaultLocalAddress();
+            localAddress = address.getHostAddress();
+            initPublishing();
+            metrics.bindEmbeddedNodes(() -> embeddedBackendServices.size());
+            updateServices();
+            if (discoveryEnabled) {
+                // creating JmDNS binds its sockets and takes a while, which must not hold up the startup
+                serviceDiscoveryExecutor.execute(() -> startDiscovery(address));
             }
-            objectMapper = new ObjectMapper();
-            new ServiceDiscoveryTask().run(); // first we run synchronously, then schedule service discovery
-            serviceDiscoveryExecutor.scheduleWithFixedDelay(new ServiceDiscoveryTask(), 10, 10, TimeUnit.SECONDS);
         } catch (IOException e) {
-            new UncheckedIOException(e);
+            throw new UncheckedIOException(e);
         }
     }
 
-    @Override
-    public void publish(String topic, Object msg) {
-        LOG.info(String.format("Publishing message on topic '%s'.", topic));
-        // writes are sent to all nodes
-        for (String service : embeddedBackendServices) {
+    /**
+     * Initializes publishing onto a fixed set of nodes without service discovery (for benchmarks).
+     */
+    void initWithServices(List<String> services) {
+        initPublishing();
+        embeddedBackendServices = List.copyOf(services);
+        CompletableFuture.allOf(services.stream().map(this::connect).toArray(CompletableFuture[]::new)).join();
+    }
+
+    private static InetAddress defaultLocalAddress() throws IOException {
+        InetAddress localHost = InetAddress.getLocalHost();
+        if (!localHost.isLoopbackAddress()) {
+            return localHost;
+        }
+        // the host name often resolves to a loopback address, which the nodes cannot call back on
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (networkInterface.isUp() && !networkInterface.isLoopback()) {
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+                    if (address instanceof Inet4Address) {
+                        return address;
+                    }
+                }
+            }
+        }
+        return localHost;
+    }
+
+    private void startDiscovery(InetAddress address) {
+        try {
+            jmdns = JmDNS.create(address);
+            jmdns.addServiceListener(SERVICE_TYPE, new ServiceDiscoveryListener());
+            LOG.debug("Started service discovery.");
+        } catch (IOException e) {
+            LOG.error("Could not start service discovery!", e);
+        }
+    }
+
+    private void stopDiscovery() {
+        if (jmdns != null) {
             try {
-                callService(service, "/pushMessage/" + topic, msg);
-            } catch (EmbeddedInstanceRemoteException e) {
-                LOG.error(e);
+                jmdns.close();
+            } catch (IOException e) {
+                LOG.warn("Could not stop service discovery!", e);
             }
         }
     }
 
+    /**
+     * Publishes a new snapshot of the seed and discovered services, and connects to the new ones.
+     */
+    private synchronized void updateServices() {
+        Set<String> services = new LinkedHashSet<>(seedServices);
+        services.addAll(new TreeSet<>(discoveredServices.values()));
+        List<String> current = List.copyOf(services);
+        List<String> previous = embeddedBackendServices;
+        if (current.equals(previous)) {
+            return;
+        }
+        embeddedBackendServices = current;
+        if (current.isEmpty()) {
+            LOG.error("No embedded backend found!");
+        } else {
+            LOG.info(String.format("Discovered embedded backend instances on paperboy nodes %s.", current));
+        }
+        current.stream().filter(service -> !previous.contains(service)).forEach(this::connect);
+        previous.stream().filter(service -> !current.contains(service)).forEach(this::disconnect);
+    }
+
+    private void initPublishing() {
+        httpClient = HttpClient.newBuilder()
+                .version(httpVersion)
+                .connectTimeout(connectTimeout)
+                .build();
+        if (!keepAliveInterval.isZero()) {
+            serviceDiscoveryExecutor.scheduleWithFixedDelay(() -> embeddedBackendServices.forEach(this::warmUp),
+                    keepAliveInterval.toMillis(), keepAliveInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (hedgingEnabled) {
+            instanceHedger = new RequestHedger(serviceDiscoveryExecutor, MIN_HEDGE_DELAY);
+        }
+        if (batchingEnabled) {
+            batcher = new EmbeddedMessageBatcher(batchSize, batchLinger, (service, topic, messages) -> callServiceAsync(service, "/pushMessages/" + topic, messageCodec.encodeArray(messages)));
+        }
+    }
+
+    @Override
+    public void publish(String topic, Object msg) {
+        try {
+            publishAsync(topic, msg).join();
+        } catch (CompletionException e) {
+            LOG.error(e.getCause());
+        }
+    }
+
+    /**
+     * Publishes the message to all discovered embedded nodes in parallel. Failures of single nodes are logged, the
+     * returned future only fails when the message could not be delivered to any of the nodes.
+     *
+     * @param topic name of the target topic
+     * @param msg   POJO of the message
+     * @return future completed when all nodes have responded (or failed)
+     */
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Publishing message on topic '%s'.", topic));
+        }
+        publishLog.record(topic);
+        List<String> services = embeddedBackendServices;
+        if (services.isEmpty()) {
+            return CompletableFuture.failedFuture(new EmbeddedInstanceRemoteException("No available embedded backend!"));
+        }
+        byte[] body;
+        try {
+            body = EncodedMessage.encode(messageCodec, msg); // encoded once, the same bytes are sent to every node
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // writes are sent to all nodes at once, so publishing takes as long as the slowest node
+        List<CompletableFuture<Boolean>> calls = new ArrayList<>(services.size());
+        for (String service : services) {
+            EmbeddedNodePublishPath path = publishPaths.get(service);
+            CompletableFuture<Void> call = path != null ? path.publish(topic, body) : publishOverRest(service, topic, body);
+            calls.add(call.handle((v, e) -> {
+                if (e != null) {
+                    Exception cause = unwrap(e);
+                    if (!(cause instanceof EmbeddedNodeCircuitBreaker.OpenException)) {
+                        LOG.error(cause);
+                    } else if (LOG.isDebugEnabled()) {
+                        LOG.debug(cause.getMessage());
+                    }
+                    return false;
+                }
+                return true;
+            }));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).thenAccept(v -> {
+            if (calls.stream().noneMatch(CompletableFuture::join)) {
+                throw new CompletionException(new EmbeddedInstanceRemoteException(String.format("Could not publish message on topic '%s' to any embedded backend!", topic)));
+            }
+        });
+    }
+
+    private CompletableFuture<Void> publishOverRest(String service, String topic, byte[] body) {
+        return batcher != null ? batcher.add(service, topic, body) : callServiceAsync(service, "/pushMessage/" + topic, body);
+    }
+
+    /**
+     * Registers the handler and subscribes the queue on a node in the background. The subscription is moved to another
+     * node when its node fails, see {@link #setHealthCheckInterval(Duration)}.
+     */
     @Override
     public void listen(String queue, MessageHandler messageHandler) {
         LOG.info(String.format("Listening for messages on topic '%s'.", queue));
         messageHandlers.put(queue, messageHandler);
-        Caller caller = new Caller(localAddress, 8080, "/messageCallback/" + queue); // for callback
+        startHealthMonitor();
+        listenerExecutor.execute(() -> {
+            queueBindings.put(queue, null);
+            bind(queue, null);
+        });
+    }
+
+    private synchronized void startHealthMonitor() {
+        if (healthMonitor != null) {
+            return;
+        }
+        healthMonitor = new EmbeddedNodeHealthMonitor(() -> embeddedBackendServices, this::instanceIdFor, new NodeChangeListener());
+        listenerExecutor.scheduleWithFixedDelay(() -> {
+            healthMonitor.run();
+            // queues left without a node by an earlier failure
+            queueBindings.entrySet().stream().filter(binding -> binding.getValue() == null).map(Map.Entry::getKey)
+                    .collect(Collectors.toList()).forEach(queue -> bind(queue, null));
+        }, healthCheckInterval.toMillis(), healthCheckInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Subscribes the queue on the next reachable node (called on the listener executor). The request is not waited for,
+     * so the subscriptions of many queues are in flight together and the node selector sees the load of each node.
+     *
+     * @param failedService node the queue was bound to before, null if none
+     */
+    private void bind(String queue, String failedService) {
+        if (!pendingBinds.add(queue)) {
+            return;
+        }
+        // unbound until the subscription succeeded, so the failed node does not take the queue back meanwhile
+        queueBindings.put(queue, null);
+        String service;
         try {
-            String service = nextService(); // pick a service from the pool in a round-robin fashion
-            String instanceId = instanceIdFor(service); // instanceId is unique to each embedded node
-            callService(service, "/subscribeTopic/" + queue, caller);
-            // scheduling listener task so that in case of the embedded node fails we re-register on an alive node
-            listenerExecutor.scheduleWithFixedDelay(new ListenerTask(queue, caller, service, instanceId), 2, 2, TimeUnit.SECONDS);
+            service = nextReachableService(failedService);
         } catch (EmbeddedInstanceRemoteException e) {
-            // in case nextService, instanceIdFor or callService has failed before scheduling
-            LOG.error(e);
-            listenerExecutor.scheduleWithFixedDelay(new ListenerTask(queue, caller, "N/A", "N/A"), 2, 2, TimeUnit.SECONDS);
+            pendingBinds.remove(queue);
+            bindFailed(queue, null, failedService, e);
+            return;
         }
+        subscribe(service, queue).whenComplete((v, e) -> onListenerExecutor(() -> {
+            pendingBinds.remove(queue);
+            if (e != null) {
+                bindFailed(queue, service, failedService, unwrap(e));
+                return;
+            }
+            queueBindings.put(queue, service);
+            if (failedService != null) {
+                LOG.info(String.format("Switched topic '%s' from unusable embedded service '%s' -> '%s'.", queue, failedService, service));
+                metrics.embeddedFailover(failedService, service);
+            }
+            // the node failed its health check while it was being subscribed
+            if (healthMonitor.isUnreachable(service)) {
+                bind(queue, service);
+            }
+        }));
+    }
+
+    private void bindFailed(String queue, String service, String failedService, Exception e) {
+        // retried after the next health check
+        queueBindings.put(queue, null);
+        if (failedService != null) {
+            metrics.embeddedFailover(failedService, null);
+        }
+        LOG.error(String.format("Could not subscribe topic '%s' on embedded service '%s'!", queue, service != null ? service : "N/A"), e);
+    }
+
+    private void onListenerExecutor(Runnable task) {
+        try {
+            listenerExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private Caller callerFor(String queue) {
+        return new Caller(localAddress, 8080, "/messageCallback/" + queue); // for callback
+    }
+
+    private List<String> queuesBoundTo(String service) {
+        return queueBindings.entrySet().stream().filter(binding -> service.equals(binding.getValue())).map(Map.Entry::getKey)
+                .collect(Collectors.toList());
     }
 
     /**
@@ -108,63 +684,227 @@ public class EmbeddedBackend implements MessagingBackend {
      * @param providedEmbeddedBackendToken
      */
     public void messageCallback(String topic, Object msg, String providedEmbeddedBackendToken) {
-        LOG.info(String.format("Message callback on topic '%s'.", topic));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Message callback on topic '%s'.", topic));
+        }
         if (!this.embeddedBackendToken.equals(providedEmbeddedBackendToken)) {
             throw new IllegalArgumentException("Invalid token for embedded backend!");
         }
-        if (messageHandlers.containsKey(topic)) {
-            LOG.info("Message handler found, calling.");
-            messageHandlers.get(topic).handleMessage(topic, msg.toString());
+        MessageHandler messageHandler = messageHandlers.get(topic);
+        if (messageHandler != null) {
+            callbackLog.record(topic);
+            messageHandler.handleMessage(topic, msg.toString());
         }
     }
 
-    private String nextService() throws EmbeddedInstanceRemoteException {
-        if (embeddedBackendServices.size() == 0) {
-            throw new EmbeddedInstanceRemoteException("No available embedded backend!");
+    /**
+     * Callback received over a stream, which has been authenticated by its handshake.
+     */
+    private void streamCallback(String topic, byte[] msg) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Stream callback on topic '%s'.", topic));
+        }
+        MessageHandler messageHandler = messageHandlers.get(topic);
+        if (messageHandler != null) {
+            callbackLog.record(topic);
+            messageHandler.handleMessage(topic, msg, messageCodec.contentType());
         }
-        int nextIdx = embeddedBackendServiceIdx.incrementAndGet();
-        if (nextIdx >= embeddedBackendServices.size()) {
-            embeddedBackendServiceIdx.set(0);
-            nextIdx = 0;
+    }
+
+    /**
+     * @param failedService node to skip, null if none
+     */
+    private String nextReachableService(String failedService) throws EmbeddedInstanceRemoteException {
+        List<String> candidates = new ArrayList<>(embeddedBackendServices);
+        candidates.removeIf(service -> service.equals(failedService) || healthMonitor.isUnreachable(service)
+                || circuitBreakerFor(service).phase() == EmbeddedNodeCircuitBreaker.Phase.OPEN);
+        if (candidates.isEmpty()) {
+            throw new EmbeddedInstanceRemoteException("No reachable embedded backend!");
         }
-        return embeddedBackendServices.get(nextIdx);
+        return nodeSelector.select(candidates);
+    }
+
+    private CompletableFuture<String> instanceIdFor(String service) {
+        HttpRequest get = HttpRequest.newBuilder()
+                .GET()
+                .header("PaperboyEmbeddedBackendToken", embeddedBackendToken)
+                .uri(URI.create(service + "/instance"))
+                .timeout(requestTimeout)
+                .build();
+        return singleTargetCall(service, instanceHedger, () -> httpClient.sendAsync(get, HttpResponse.BodyHandlers.ofString()).handle((response, e) -> {
+            if (e != null) {
+                throw new CompletionException(new EmbeddedInstanceRemoteException(String.format("Communication error with service: '%s'!", service), unwrap(e)));
+            }
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new EmbeddedInstanceRemoteException(String.format("Communication error with service: '%s'!", service)));
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Embedded service '%s' has instance id: '%s'.", service, response.body()));
+            }
+            return response.body();
+        }));
     }
 
-    private String instanceIdFor(String service) throws EmbeddedInstanceRemoteException {
+    private CompletableFuture<Void> subscribe(String service, String queue) {
+        HttpRequest post;
         try {
-            HttpRequest post = HttpRequest.newBuilder()
-                    .GET()
+            String url = service + "/subscribeTopic/" + queue;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Calling service '%s'.", url));
+            }
+            post = HttpRequest.newBuilder()
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(messageCodec.encode(callerFor(queue))))
+                    .header("Content-Type", messageCodec.contentType())
                     .header("PaperboyEmbeddedBackendToken", embeddedBackendToken)
-                    .uri(URI.create(service + "/instance"))
+                    .uri(URI.create(url))
+                    .timeout(requestTimeout)
                     .build();
-            HttpResponse response = httpClient.send(post, HttpResponse.BodyHandlers.ofString());
-            if (response.statusCode() == 200) {
-                String instanceId = response.body().toString();
-                LOG.info(String.format("Embedded service '%s' has instance id: '%s'.", service, instanceId));
-                return instanceId;
-            }
         } catch (Exception e) {
-            throw new EmbeddedInstanceRemoteException(e);
+            return CompletableFuture.failedFuture(new EmbeddedInstanceRemoteException(e));
+        }
+        // never hedged, a node may register the same callback twice and then deliver every message twice
+        return singleTargetCall(service, null, () -> httpClient.sendAsync(post, HttpResponse.BodyHandlers.discarding()).handle((response, e) -> {
+            if (e != null) {
+                throw new CompletionException(new EmbeddedInstanceRemoteException(unwrap(e)));
+            }
+            if (response.statusCode() >= 500) {
+                throw new CompletionException(new EmbeddedInstanceRemoteException(String.format("Service '%s' responded with status %d!", service, response.statusCode())));
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Sends a request to one node through its circuit breaker, hedged when a hedger is given, and reports it to the
+     * node selector.
+     */
+    private <T> CompletableFuture<T> singleTargetCall(String service, RequestHedger hedger, Supplier<CompletableFuture<T>> attempt) {
+        EmbeddedNodeCircuitBreaker circuitBreaker = circuitBreakerFor(service);
+        try {
+            circuitBreaker.acquire();
+        } catch (EmbeddedNodeCircuitBreaker.OpenException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long start = System.nanoTime();
+        nodeSelector.requestStarted(service);
+        CompletableFuture<T> call = hedger != null ? hedger.call(attempt) : attempt.get();
+        return call.whenComplete((r, e) -> {
+            nodeSelector.requestCompleted(service, System.nanoTime() - start, e == null);
+            if (e == null) {
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onFailure();
+            }
+        });
+    }
+
+    private EmbeddedNodeCircuitBreaker circuitBreakerFor(String service) {
+        return circuitBreakers.computeIfAbsent(service, k -> new EmbeddedNodeCircuitBreaker(service, circuitFailureThreshold, circuitOpenDuration));
+    }
+
+    private CompletableFuture<Void> callServiceAsync(String service, String path, byte[] body) {
+        EmbeddedNodeCircuitBreaker circuitBreaker = circuitBreakerFor(service);
+        try {
+            // checked first, so requests to a hanging node are not queued for a slot
+            circuitBreaker.acquire();
+        } catch (EmbeddedNodeCircuitBreaker.OpenException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        throw new EmbeddedInstanceRemoteException(String.format("Communication error with service: '%s'!", service));
+        EmbeddedNodeRequestLimiter limiter = requestLimiters.computeIfAbsent(service, k -> new EmbeddedNodeRequestLimiter(maxInFlightPerNode, requestTimeout));
+        // queued without blocking while the node is saturated, so the publisher goes on with the other nodes
+        return limiter.acquire()
+                .handle((v, e) -> {
+                    if (e != null) {
+                        circuitBreaker.onFailure();
+                        throw new CompletionException(new EmbeddedInstanceRemoteException(String.format("Too many in-flight requests to service: '%s'!", service)));
+                    }
+                    return null;
+                })
+                .thenCompose(v -> post(service, path, body, limiter, circuitBreaker));
     }
 
-    private void callService(String service, String path, Object msg) throws EmbeddedInstanceRemoteException {
+    private CompletableFuture<Void> post(String service, String path, byte[] body, EmbeddedNodeRequestLimiter limiter, EmbeddedNodeCircuitBreaker circuitBreaker) {
         try {
             String url = service + path;
-            LOG.info(String.format("Calling service '%s'.", url));
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Calling service '%s'.", url));
+            }
             HttpRequest post = HttpRequest.newBuilder()
-                    .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(msg)))
-                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                    .header("Content-Type", messageCodec.contentType())
                     .header("PaperboyEmbeddedBackendToken", embeddedBackendToken)
                     .uri(URI.create(url))
+                    .timeout(requestTimeout)
                     .build();
-            httpClient.send(post, HttpResponse.BodyHandlers.ofString());
+            return httpClient.sendAsync(post, HttpResponse.BodyHandlers.discarding())
+                    .handle((response, e) -> {
+                        limiter.release();
+                        if (e != null) {
+                            circuitBreaker.onFailure();
+                            throw new CompletionException(new EmbeddedInstanceRemoteException(String.format("Communication error with service: '%s'!", service), unwrap(e)));
+                        }
+                        circuitBreaker.onSuccess();
+                        return null;
+                    });
         } catch (Exception e) {
-            throw new EmbeddedInstanceRemoteException(e);
+            limiter.release();
+            circuitBreaker.onFailure();
+            return CompletableFuture.failedFuture(new EmbeddedInstanceRemoteException(e));
         }
     }
 
+    /**
+     * Opens the connection and, when enabled, the stream to a newly discovered node.
+     */
+    private CompletableFuture<Void> connect(String service) {
+        CompletableFuture<Void> warmedUp = warmUp(service);
+        if (!streamingEnabled) {
+            return warmedUp;
+        }
+        EmbeddedStream stream = new EmbeddedStream(service, streamPath, httpClient, embeddedBackendToken,
+                messageCodec.contentType(), streamWindow, connectTimeout, this::streamCallback, serviceDiscoveryExecutor);
+        EmbeddedNodePublishPath previous = publishPaths.put(service,
+                new EmbeddedNodePublishPath(stream, (topic, body) -> publishOverRest(service, topic, body)));
+        if (previous != null) {
+            previous.close();
+        }
+        return CompletableFuture.allOf(warmedUp, stream.connect());
+    }
+
+    private void disconnect(String service) {
+        EmbeddedNodePublishPath path = publishPaths.remove(service);
+        if (path != null) {
+            path.close();
+        }
+    }
+
+    /**
+     * Sends a GET request to the node, which opens the connection (upgraded to HTTP/2 when enabled) the following
+     * requests reuse. Request bodies are never sent with an upgrade, so this has to come first.
+     */
+    private CompletableFuture<Void> warmUp(String service) {
+        HttpRequest get = HttpRequest.newBuilder()
+                .GET()
+                .header("PaperboyEmbeddedBackendToken", embeddedBackendToken)
+                .uri(URI.create(service + "/instance"))
+                .timeout(requestTimeout)
+                .build();
+        return httpClient.sendAsync(get, HttpResponse.BodyHandlers.discarding())
+                .handle((response, e) -> {
+                    if (e != null) {
+                        LOG.warn(String.format("Could not connect to embedded service '%s'!", service), unwrap(e));
+                    } else if (LOG.isDebugEnabled()) {
+                        LOG.debug(String.format("Connected to embedded service '%s' over %s.", service, response.version()));
+                    }
+                    return null;
+                });
+    }
+
+    private static Exception unwrap(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+    }
+
     private static class Caller {
 
         private String restHostname;
@@ -202,75 +942,84 @@ public class EmbeddedBackend implements MessagingBackend {
         }
     }
 
-    private class ServiceDiscoveryTask implements Runnable {
+    private class ServiceDiscoveryListener implements ServiceListener {
 
         @Override
-        public void run() {
-            LOG.info("Running service discovery...");
-            try {
-                List<String> tmp = new ArrayList<>();
-                JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
-                ServiceInfo[] serviceInfos = jmdns.list("_paperboy-http._tcp.local.", 6000);
-                if (serviceInfos.length == 0) {
-                    embeddedBackendServices = tmp;
-                    LOG.error("No embedded backend found!");
-                } else {
-                    for (ServiceInfo info : serviceInfos) {
-                        String host = "localhost";
-                        if (info.getHostAddresses() != null && info.getHostAddresses().length > 0) {
-                            host = info.getHostAddresses()[0];
-                        }
-                        LOG.info(String.format("Discovered embedded backend instance on paperboy node '%s:%d'.", host, info.getPort()));
-                        tmp.add("http://" + host + ":" + info.getPort());
-                    }
-                    embeddedBackendServices = tmp;
-                }
-                jmdns.close();
-            } catch (IOException e) {
-                LOG.error(e);
+        public void serviceAdded(ServiceEvent event) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Resolving embedded backend '%s'...", event.getName()));
+            }
+            pendingResolutions.putIfAbsent(event.getName(), System.nanoTime());
+            // answered by serviceResolved, also when the address or port of the service changes later on; the request
+            // waits for the answer a little, which would hold up the events of the other services
+            JmDNS dns = event.getDNS();
+            if (!serviceDiscoveryExecutor.isShutdown()) {
+                serviceDiscoveryExecutor.execute(() -> dns.requestServiceInfo(event.getType(), event.getName(), true, 1));
+            }
+        }
+
+        @Override
+        public void serviceRemoved(ServiceEvent event) {
+            pendingResolutions.remove(event.getName());
+            if (discoveredServices.remove(event.getName()) != null) {
+                updateServices();
+            }
+        }
+
+        @Override
+        public void serviceResolved(ServiceEvent event) {
+            ServiceInfo info = event.getInfo();
+            String host = "localhost";
+            if (info.getHostAddresses() != null && info.getHostAddresses().length > 0) {
+                host = info.getHostAddresses()[0];
+            }
+            String service = "http://" + host + ":" + info.getPort();
+            if (!service.equals(discoveredServices.put(event.getName(), service))) {
+                updateServices();
+            }
+            Long addedAt = pendingResolutions.remove(event.getName());
+            if (addedAt != null) {
+                metrics.embeddedDiscoveryCompleted(System.nanoTime() - addedAt, embeddedBackendServices.size());
             }
         }
     }
 
-    private class ListenerTask implements Runnable {
+    /**
+     * Moves the queues of a node together, called on the listener executor.
+     */
+    private class NodeChangeListener implements EmbeddedNodeHealthMonitor.Listener {
 
-        private final String queue;
-        private final Caller caller;
-        private volatile String service;
-        private volatile String instanceId;
+        @Override
+        public void nodeUp(String service, String instanceId) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Embedded service '%s' is up with instance id '%s'.", service, instanceId));
+            }
+        }
 
-        public ListenerTask(String queue, Caller caller, String service, String instanceId) {
-            this.queue = queue;
-            this.caller = caller;
-            this.service = service;
-            this.instanceId = instanceId;
+        @Override
+        public void nodeRestarted(String service, String previousInstanceId, String instanceId) {
+            // in case an embedded service with the same name exists but it's actually a new instance
+            LOG.info(String.format("Embedded service '%s' has new instance id '%s' -> '%s'.", service, previousInstanceId, instanceId));
+            for (String queue : queuesBoundTo(service)) {
+                subscribe(service, queue).whenComplete((v, e) -> {
+                    if (e != null) {
+                        onListenerExecutor(() -> {
+                            if (service.equals(queueBindings.get(queue))) {
+                                bind(queue, service);
+                            }
+                        });
+                    }
+                });
+            }
         }
 
         @Override
-        public void run() {
-            try {
-                String currentInstanceId = instanceIdFor(this.service);
-                if (!this.instanceId.equals(currentInstanceId)) {
-                    // in case an embedded service with the same name exists but it's actually a new instance
-                    LOG.info(String.format("Embedded service '%s' has new instance id '%s' -> '%s'.", service, instanceId, currentInstanceId));
-                    this.instanceId = currentInstanceId;
-                    callService(this.service, "/subscribeTopic/" + queue, caller);
-                }
-            } catch (EmbeddedInstanceRemoteException e) {
-                // in case the embedded instance we currently listing on has failed
-                try {
-                    String currentService = nextService(); // we try picking another one
-                    LOG.info(String.format("Switching from unusable embedded service '%s' -> '%s'.", service, currentService));
-                    this.service = currentService; // switching onto the new one
-                    this.instanceId = "N/A";
-                    String currentInstanceId = instanceIdFor(currentService); // instanceId for the new one
-                    this.instanceId = currentInstanceId;
-                    callService(this.service, "/subscribeTopic/" + queue, caller);
-                } catch (EmbeddedInstanceRemoteException ee) {
-                    // in case the new one is also failing (in the next iteration we will try picking a new one again...and again...)
-                    LOG.error(ee);
-                }
+        public void nodeDown(String service) {
+            List<String> queues = queuesBoundTo(service);
+            if (!queues.isEmpty()) {
+                LOG.warn(String.format("Embedded service '%s' is unusable, switching topics %s.", service, queues));
             }
+            queues.forEach(queue -> bind(queue, service));
         }
     }
 
@@ -0,0 +1,156 @@
+package com.paperboy.connector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects encoded messages per embedded node and topic, and hands them over as a single batch when either the batch
+ * size or the linger time is reached. Batches of the same node and topic are sent one after another, so ordering is kept.
+ */
+class EmbeddedMessageBatcher {
+
+    @FunctionalInterface
+    interface BatchSender {
+
+        CompletableFuture<Void> send(String service, String topic, List<byte[]> messages);
+
+    }
+
+    private final int batchSize;
+    private final Duration linger;
+    private final BatchSender batchSender;
+    private final ScheduledExecutorService lingerExecutor;
+    private final Map<BatchKey, Batch> batches = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    EmbeddedMessageBatcher(int batchSize, Duration linger, BatchSender batchSender) {
+        this.batchSize = batchSize;
+        this.linger = linger;
+        this.batchSender = batchSender;
+        this.lingerExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    CompletableFuture<Void> add(String service, String topic, byte[] msg) {
+        return batches.computeIfAbsent(new BatchKey(service, topic), k -> new Batch(service, topic)).add(msg);
+    }
+
+    /**
+     * Sends the collected messages, later ones are failed.
+     */
+    void close() {
+        // set first, so an add() taking a batch's lock after its flush below sees it
+        closed = true;
+        batches.values().forEach(Batch::flush);
+        lingerExecutor.shutdown();
+    }
+
+    private static class Pending {
+
+        private final byte[] msg;
+        private final CompletableFuture<Void> future;
+
+        Pending(byte[] msg, CompletableFuture<Void> future) {
+            this.msg = msg;
+            this.future = future;
+        }
+    }
+
+    private class Batch {
+
+        private final String service;
+        private final String topic;
+        private List<Pending> pending = new ArrayList<>();
+        private ScheduledFuture<?> lingerTask;
+        private CompletableFuture<Void> lastSend = CompletableFuture.completedFuture(null);
+
+        Batch(String service, String topic) {
+            this.service = service;
+            this.topic = topic;
+        }
+
+        synchronized CompletableFuture<Void> add(byte[] msg) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Embedded backend is closed!"));
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            pending.add(new Pending(msg, future));
+            if (pending.size() >= batchSize) {
+                send();
+            } else if (pending.size() == 1) {
+                lingerTask = lingerExecutor.schedule(this::flush, linger.toMillis(), TimeUnit.MILLISECONDS);
+            }
+            return future;
+        }
+
+        synchronized void flush() {
+            if (!pending.isEmpty()) {
+                send();
+            }
+        }
+
+        // must be called while holding the lock, so batches of the same key are chained in the order they were taken;
+        // the batch is sent by another thread, as sending may take a while and would hold up the publishers
+        private void send() {
+            if (lingerTask != null) {
+                lingerTask.cancel(false);
+                lingerTask = null;
+            }
+            List<Pending> batch = pending;
+            pending = new ArrayList<>(batchSize);
+            List<byte[]> messages = new ArrayList<>(batch.size());
+            for (Pending p : batch) {
+                messages.add(p.msg);
+            }
+            lastSend = lastSend
+                    .handle((v, e) -> null)
+                    .thenComposeAsync(v -> batchSender.send(service, topic, messages))
+                    .whenComplete((v, e) -> {
+                        for (Pending p : batch) {
+                            if (e != null) {
+                                p.future.completeExceptionally(e);
+                            } else {
+                                p.future.complete(null);
+                            }
+                        }
+                    });
+        }
+    }
+
+    private static class BatchKey {
+
+        private final String service;
+        private final String topic;
+
+        BatchKey(String service, String topic) {
+            this.service = service;
+            this.topic = topic;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            BatchKey batchKey = (BatchKey) o;
+            return service.equals(batchKey.service) && topic.equals(batchKey.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(service, topic);
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.paperboy.connector;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker of a single embedded node. It opens after a number of consecutive failed requests, rejecting the
+ * requests to the node without sending them. Once the open duration has passed, a single trial request is let through
+ * (half-open): it closes the circuit on success and opens it again on failure. The state is swapped atomically, no
+ * locks are taken.
+ */
+class EmbeddedNodeCircuitBreaker {
+
+    enum Phase {CLOSED, OPEN, HALF_OPEN}
+
+    private static final class State {
+
+        final Phase phase;
+        final int failures;
+        final long openUntilNanos;
+
+        State(Phase phase, int failures, long openUntilNanos) {
+            this.phase = phase;
+            this.failures = failures;
+            this.openUntilNanos = openUntilNanos;
+        }
+    }
+
+    private static final State CLOSED = new State(Phase.CLOSED, 0, 0);
+
+    static class OpenException extends EmbeddedInstanceRemoteException {
+
+        OpenException(String service) {
+            super(String.format("Circuit of service '%s' is open!", service));
+        }
+
+    }
+
+    private final String service;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final AtomicReference<State> state = new AtomicReference<>(CLOSED);
+
+    EmbeddedNodeCircuitBreaker(String service, int failureThreshold, Duration openDuration) {
+        this.service = service;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+    }
+
+    Phase phase() {
+        return state.get().phase;
+    }
+
+    /**
+     * @throws OpenException when the request must not be sent, every permitted request has to be followed by
+     *                       {@link #onSuccess()} or {@link #onFailure()}
+     */
+    void acquire() throws OpenException {
+        while (true) {
+            State current = state.get();
+            if (current.phase == Phase.CLOSED) {
+                return;
+            }
+            if (current.phase == Phase.HALF_OPEN || System.nanoTime() - current.openUntilNanos < 0) {
+                throw new OpenException(service);
+            }
+            // the open duration has passed, the caller winning the swap sends the trial request
+            if (state.compareAndSet(current, new State(Phase.HALF_OPEN, current.failures, 0))) {
+                return;
+            }
+        }
+    }
+
+    void onSuccess() {
+        State current = state.get();
+        if (current != CLOSED) {
+            state.set(CLOSED);
+        }
+    }
+
+    void onFailure() {
+        while (true) {
+            State current = state.get();
+            State next;
+            if (current.phase == Phase.OPEN) {
+                return; // sent before the circuit opened
+            } else if (current.phase == Phase.HALF_OPEN || current.failures + 1 >= failureThreshold) {
+                next = new State(Phase.OPEN, current.failures + 1, System.nanoTime() + openNanos);
+            } else {
+                next = new State(Phase.CLOSED, current.failures + 1, 0);
+            }
+            if (state.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+}
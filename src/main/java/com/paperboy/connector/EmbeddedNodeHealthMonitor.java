@@ -0,0 +1,118 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Checks every embedded node once per run by its instance id, however many queues are bound to it, and reports nodes
+ * coming up, restarting (new instance id) and going down (failed check or no longer discovered). Runs are expected to
+ * be scheduled on a single thread, the listener is called on that thread after a run has checked all nodes.
+ */
+class EmbeddedNodeHealthMonitor implements Runnable {
+
+    private static final Log LOG = LogFactory.getLog(EmbeddedNodeHealthMonitor.class);
+
+    interface Listener {
+
+        void nodeUp(String service, String instanceId);
+
+        void nodeRestarted(String service, String previousInstanceId, String instanceId);
+
+        void nodeDown(String service);
+
+    }
+
+    private final Supplier<List<String>> services;
+    private final Function<String, CompletableFuture<String>> instanceIdLookup;
+    private final Listener listener;
+    // only touched by the monitor thread
+    private final Map<String, String> instanceIds = new HashMap<>();
+    private volatile Set<String> unreachable = Set.of();
+
+    /**
+     * @param services         current nodes
+     * @param instanceIdLookup looks up the instance id of a node, failing when it is not reachable
+     * @param listener         notified of changes
+     */
+    EmbeddedNodeHealthMonitor(Supplier<List<String>> services, Function<String, CompletableFuture<String>> instanceIdLookup, Listener listener) {
+        this.services = services;
+        this.instanceIdLookup = instanceIdLookup;
+        this.listener = listener;
+    }
+
+    /**
+     * @return true when the node failed its last check, nodes not checked yet are assumed to be reachable
+     */
+    boolean isUnreachable(String service) {
+        return unreachable.contains(service);
+    }
+
+    @Override
+    public void run() {
+        try {
+            check();
+        } catch (RuntimeException e) {
+            // an exception would cancel the scheduled runs
+            LOG.error("Error while checking embedded nodes!", e);
+        }
+    }
+
+    private void check() {
+        List<String> current = services.get();
+        // all nodes are checked at once, so a run takes as long as the slowest node
+        Map<String, CompletableFuture<String>> checks = new LinkedHashMap<>();
+        for (String service : current) {
+            checks.put(service, instanceIdLookup.apply(service).handle((instanceId, e) -> e == null ? instanceId : null));
+        }
+        CompletableFuture.allOf(checks.values().toArray(new CompletableFuture[0])).join();
+
+        List<Runnable> events = new ArrayList<>();
+        Set<String> failed = new HashSet<>();
+        for (Map.Entry<String, CompletableFuture<String>> check : checks.entrySet()) {
+            String service = check.getKey();
+            String instanceId = check.getValue().join();
+            if (instanceId == null) {
+                failed.add(service);
+                instanceIds.remove(service);
+                // also reported when the first check fails, queues may have been bound to the node before
+                if (!unreachable.contains(service)) {
+                    events.add(() -> listener.nodeDown(service));
+                }
+                continue;
+            }
+            String previousInstanceId = instanceIds.put(service, instanceId);
+            if (previousInstanceId == null) {
+                events.add(() -> listener.nodeUp(service, instanceId));
+            } else if (!previousInstanceId.equals(instanceId)) {
+                events.add(() -> listener.nodeRestarted(service, previousInstanceId, instanceId));
+            }
+        }
+        for (String service : new ArrayList<>(instanceIds.keySet())) {
+            if (!checks.containsKey(service)) {
+                instanceIds.remove(service);
+                events.add(() -> listener.nodeDown(service));
+            }
+        }
+        // updated first, so failovers triggered by the events skip the failed nodes
+        unreachable = Set.copyOf(failed);
+        for (Runnable event : events) {
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                LOG.error("Error while handling change of embedded node!", e);
+            }
+        }
+    }
+
+}
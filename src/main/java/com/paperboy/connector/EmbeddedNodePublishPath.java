@@ -0,0 +1,89 @@
+package com.paperboy.connector;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Chooses between the stream and REST for the publishes to a single embedded node. A node stays on one path until the
+ * sends issued on it have completed, publishes arriving in the meantime wait for them in order, so a message never
+ * overtakes an earlier one on the other path.
+ */
+class EmbeddedNodePublishPath {
+
+    @FunctionalInterface
+    interface RestSender {
+
+        CompletableFuture<Void> send(String topic, byte[] body);
+
+    }
+
+    private final EmbeddedStream stream;
+    private final RestSender restSender;
+    // guarded by this
+    private boolean overStream = true;
+    private CompletableFuture<Void> outstanding = CompletableFuture.completedFuture(null);
+    private int waiting;
+
+    EmbeddedNodePublishPath(EmbeddedStream stream, RestSender restSender) {
+        this.stream = stream;
+        this.restSender = restSender;
+    }
+
+    EmbeddedStream stream() {
+        return stream;
+    }
+
+    /**
+     * @return future completed when the frame has been written to the stream, or the node has responded to REST
+     */
+    synchronized CompletableFuture<Void> publish(String topic, byte[] body) {
+        if (waiting == 0) {
+            CompletableFuture<Void> sent = trySend(topic, body, outstanding.isDone());
+            if (sent != null) {
+                outstanding = CompletableFuture.allOf(outstanding, sent.handle((v, e) -> null));
+                return sent;
+            }
+        }
+        // the path has to change, this and the following publishes wait for everything sent before
+        waiting++;
+        CompletableFuture<Void> sent = outstanding.thenCompose(v -> sendWaiting(topic, body));
+        outstanding = sent.handle((v, e) -> null);
+        return sent;
+    }
+
+    private synchronized CompletableFuture<Void> sendWaiting(String topic, byte[] body) {
+        waiting--;
+        return trySend(topic, body, true);
+    }
+
+    /**
+     * @param idle true when no send of the current path is outstanding
+     * @return null when the publish has to wait before switching the path
+     */
+    private CompletableFuture<Void> trySend(String topic, byte[] body, boolean idle) {
+        if (!overStream) {
+            if (!stream.canPublish()) {
+                return restSender.send(topic, body);
+            }
+            if (!idle) {
+                return null;
+            }
+            overStream = true;
+        }
+        CompletableFuture<Void> sent = stream.publish(topic, body);
+        if (sent != null) {
+            // a frame lost with the connection is sent again over REST
+            return sent.handle((v, e) -> e == null ? CompletableFuture.<Void>completedFuture(null) : restSender.send(topic, body))
+                    .thenCompose(f -> f);
+        }
+        if (!idle) {
+            return null;
+        }
+        overStream = false;
+        return restSender.send(topic, body);
+    }
+
+    void close() {
+        stream.close();
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.paperboy.connector;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the concurrent requests to a single embedded node without blocking the caller. Requests over the limit wait
+ * in submission order for the slot of a completed one, a waiting request fails with a timeout when it has not got a
+ * slot in time.
+ */
+class EmbeddedNodeRequestLimiter {
+
+    private static final CompletableFuture<Void> ACQUIRED = CompletableFuture.completedFuture(null);
+
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    // guarded by this
+    private final Deque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int inFlight;
+
+    EmbeddedNodeRequestLimiter(int maxInFlight, Duration timeout) {
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeout.toMillis();
+    }
+
+    /**
+     * @return future completed when the request may be sent, every acquired slot has to be given back by
+     * {@link #release()}
+     */
+    CompletableFuture<Void> acquire() {
+        CompletableFuture<Void> waiter;
+        synchronized (this) {
+            if (inFlight < maxInFlight) {
+                inFlight++;
+                return ACQUIRED;
+            }
+            waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+        }
+        return waiter.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void release() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiters.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            // the slot is handed over to the next waiter, unless it has timed out in the meantime; completed outside
+            // of the lock, as its request is sent by the completing thread
+            if (next.complete(null)) {
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent WebSocket to an embedded node carrying publishes (connector to node) and callbacks (node to connector)
+ * as binary frames:
+ * <pre>
+ * MESSAGE: 0x01 | topic length (uint16) | topic (UTF-8) | message (encoded by the codec of the connection)
+ * CREDIT:  0x02 | number of MESSAGE frames the peer may send additionally (int32)
+ * </pre>
+ * Each side grants the other credits, so neither can be flooded. The connection is re-opened after it was lost; while
+ * it is down or out of credits, {@link #publish(String, byte[])} returns null and the caller falls back to REST.
+ * <p>
+ * MESSAGE frames are not acknowledged, a publish is done once its frame has been written.
+ */
+class EmbeddedStream implements WebSocket.Listener {
+
+    private static final Log LOG = LogFactory.getLog(EmbeddedStream.class);
+
+    static final byte MESSAGE = 1;
+    static final byte CREDIT = 2;
+    private static final long RECONNECT_DELAY_MILLIS = 2000;
+
+    @FunctionalInterface
+    interface MessageSink {
+
+        void onMessage(String topic, byte[] message);
+
+    }
+
+    private final String service;
+    private final URI uri;
+    private final HttpClient httpClient;
+    private final String token;
+    private final String contentType;
+    private final int window;
+    private final Duration connectTimeout;
+    private final MessageSink messageSink;
+    private final ScheduledExecutorService reconnectExecutor;
+    private final AtomicInteger sendCredits = new AtomicInteger();
+    private volatile WebSocket webSocket;
+    private volatile boolean closed;
+    private CompletableFuture<?> lastSend = CompletableFuture.completedFuture(null);
+    // only touched by the listener callbacks, which WebSocket invokes one at a time
+    private ByteArrayOutputStream partialFrame;
+    private int consumed;
+
+    EmbeddedStream(String service, String path, HttpClient httpClient, String token, String contentType, int window,
+                   Duration connectTimeout, MessageSink messageSink, ScheduledExecutorService reconnectExecutor) {
+        this.service = service;
+        this.uri = URI.create(service.replaceFirst("^http", "ws") + path);
+        this.httpClient = httpClient;
+        this.token = token;
+        this.contentType = contentType;
+        this.window = window;
+        this.connectTimeout = connectTimeout;
+        this.messageSink = messageSink;
+        this.reconnectExecutor = reconnectExecutor;
+    }
+
+    CompletableFuture<Void> connect() {
+        if (closed) {
+            // a reconnect scheduled before close()
+            return CompletableFuture.completedFuture(null);
+        }
+        return httpClient.newWebSocketBuilder()
+                .header("PaperboyEmbeddedBackendToken", token)
+                .header("PaperboyContentType", contentType)
+                .connectTimeout(connectTimeout)
+                .buildAsync(uri, this)
+                .handle((ws, e) -> {
+                    if (e != null) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(String.format("Could not open stream to embedded service '%s'.", service), e);
+                        }
+                        scheduleReconnect();
+                    }
+                    return null;
+                });
+    }
+
+    boolean isOpen() {
+        return webSocket != null;
+    }
+
+    /**
+     * @return true when {@link #publish(String, byte[])} would currently take a message
+     */
+    boolean canPublish() {
+        return webSocket != null && sendCredits.get() > 0;
+    }
+
+    /**
+     * @return future completed when the frame has been written, null when the stream cannot take the message
+     */
+    CompletableFuture<Void> publish(String topic, byte[] message) {
+        WebSocket ws = webSocket;
+        if (ws == null || !tryAcquireCredit()) {
+            return null;
+        }
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(3 + topicBytes.length + message.length)
+                .put(MESSAGE)
+                .putShort((short) topicBytes.length)
+                .put(topicBytes)
+                .put(message)
+                .flip();
+        return send(ws, frame);
+    }
+
+    private boolean tryAcquireCredit() {
+        int credits;
+        do {
+            credits = sendCredits.get();
+            if (credits <= 0) {
+                return false;
+            }
+        } while (!sendCredits.compareAndSet(credits, credits - 1));
+        return true;
+    }
+
+    // a WebSocket takes one outstanding send at a time, so sends are chained
+    private synchronized CompletableFuture<Void> send(WebSocket ws, ByteBuffer frame) {
+        CompletableFuture<Void> sent = lastSend
+                .handle((v, e) -> null)
+                .thenCompose(v -> ws.sendBinary(frame, true))
+                .thenApply(w -> null);
+        lastSend = sent;
+        return sent;
+    }
+
+    private void sendCredit(WebSocket ws, int credits) {
+        send(ws, ByteBuffer.allocate(5).put(CREDIT).putInt(credits).flip());
+    }
+
+    @Override
+    public void onOpen(WebSocket ws) {
+        if (closed) {
+            // opened by a connect still in flight when close() was called
+            ws.sendClose(WebSocket.NORMAL_CLOSURE, "closing");
+            return;
+        }
+        LOG.info(String.format("Opened stream to embedded service '%s'.", service));
+        consumed = 0;
+        sendCredit(ws, window);
+        webSocket = ws;
+        if (closed) {
+            // close() ran before the socket was stored and could not see it
+            close();
+            return;
+        }
+        ws.request(1);
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket ws, ByteBuffer data, boolean last) {
+        if (!last || partialFrame != null) {
+            if (partialFrame == null) {
+                partialFrame = new ByteArrayOutputStream();
+            }
+            byte[] chunk = new byte[data.remaining()];
+            data.get(chunk);
+            partialFrame.writeBytes(chunk);
+            if (!last) {
+                ws.request(1);
+                return null;
+            }
+            data = ByteBuffer.wrap(partialFrame.toByteArray());
+            partialFrame = null;
+        }
+        try {
+            onFrame(ws, data);
+        } catch (RuntimeException e) {
+            LOG.error(String.format("Error while handling frame from embedded service '%s'!", service), e);
+        }
+        ws.request(1);
+        return null;
+    }
+
+    private void onFrame(WebSocket ws, ByteBuffer frame) {
+        byte type = frame.get();
+        if (type == CREDIT) {
+            sendCredits.addAndGet(frame.getInt());
+        } else if (type == MESSAGE) {
+            byte[] topic = new byte[frame.getShort() & 0xFFFF];
+            frame.get(topic);
+            byte[] message = new byte[frame.remaining()];
+            frame.get(message);
+            messageSink.onMessage(new String(topic, StandardCharsets.UTF_8), message);
+            // credits are handed back in chunks to save frames
+            if (++consumed >= window / 2) {
+                sendCredit(ws, consumed);
+                consumed = 0;
+            }
+        } else {
+            LOG.warn(String.format("Unknown frame type %d from embedded service '%s'.", type, service));
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+        ws.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+        LOG.info(String.format("Stream to embedded service '%s' closed (%d).", service, statusCode));
+        lost();
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket ws, Throwable error) {
+        LOG.warn(String.format("Stream to embedded service '%s' failed!", service), error);
+        lost();
+    }
+
+    private void lost() {
+        webSocket = null;
+        sendCredits.set(0);
+        partialFrame = null;
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (!closed && !reconnectExecutor.isShutdown()) {
+            reconnectExecutor.schedule(this::connect, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void close() {
+        closed = true;
+        WebSocket ws = webSocket;
+        webSocket = null;
+        if (ws != null) {
+            ws.sendClose(WebSocket.NORMAL_CLOSURE, "closing");
+        }
+    }
+
+}
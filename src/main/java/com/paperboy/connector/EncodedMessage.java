@@ -0,0 +1,64 @@
+package com.paperboy.connector;
+
+/**
+ * Message already encoded by the backend's codec, e.g. replayed from the {@link OutboxMessagingBackend outbox}. The
+ * backends publish its bytes as they are instead of passing it to their codec, see {@link #encode(MessageCodec, Object)}.
+ */
+public final class EncodedMessage {
+
+    private final byte[] bytes;
+    private final String key;
+
+    public EncodedMessage(byte[] bytes) {
+        this(bytes, null);
+    }
+
+    /**
+     * @param bytes encoded message
+     * @param key   key of the original message, see {@link #keyOf(Object)}
+     */
+    public EncodedMessage(byte[] bytes, String key) {
+        this.bytes = bytes;
+        this.key = key;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return bytes of an {@link EncodedMessage}, any other message encoded by the codec
+     */
+    static byte[] encode(MessageCodec messageCodec, Object msg) {
+        if (msg instanceof EncodedMessage) {
+            return ((EncodedMessage) msg).getBytes();
+        }
+        return messageCodec.encode(msg);
+    }
+
+    /**
+     * Key the messages are kept in order by on partitioned backends (e.g. the Kafka record key): the channel or user of
+     * a {@link Message}, the websocket or channel of an {@link AuthorizationMessage}.
+     *
+     * @return key of the message, null if it has none
+     */
+    static String keyOf(Object msg) {
+        if (msg instanceof EncodedMessage) {
+            return ((EncodedMessage) msg).getKey();
+        }
+        if (msg instanceof Message) {
+            Message message = (Message) msg;
+            return message.getChannel() != null ? message.getChannel() : message.getUserId();
+        }
+        if (msg instanceof AuthorizationMessage) {
+            AuthorizationMessage authorizationMessage = (AuthorizationMessage) msg;
+            return authorizationMessage.getWsId() != null ? authorizationMessage.getWsId() : authorizationMessage.getChannel();
+        }
+        return null;
+    }
+
+}
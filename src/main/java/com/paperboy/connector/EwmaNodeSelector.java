@@ -0,0 +1,96 @@
+package com.paperboy.connector;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares two randomly chosen nodes and picks the cheaper one ("power of two choices"), the cost being the node's
+ * moving average of the request latency times its requests in flight plus one. The average follows a slower request at
+ * once and decays towards faster ones with time (by half every decay time), so a node turning slow is avoided right
+ * away. Failed requests count as {@link #FAILURE_PENALTY_NANOS}. Nodes without samples cost nothing, so new nodes are
+ * tried first.
+ */
+public class EwmaNodeSelector implements NodeSelector {
+
+    static final long FAILURE_PENALTY_NANOS = Duration.ofSeconds(5).toNanos();
+    private static final Duration DEFAULT_DECAY_TIME = Duration.ofSeconds(10);
+
+    private final double decayNanos;
+    private final Map<String, NodeStats> stats = new ConcurrentHashMap<>();
+
+    public EwmaNodeSelector() {
+        this(DEFAULT_DECAY_TIME);
+    }
+
+    /**
+     * @param decayTime time after which a latency sample has half of its weight left
+     */
+    public EwmaNodeSelector(Duration decayTime) {
+        if (decayTime.isZero() || decayTime.isNegative()) {
+            throw new IllegalArgumentException("The decay time must be positive!");
+        }
+        this.decayNanos = decayTime.toNanos() / Math.log(2);
+    }
+
+    @Override
+    public String select(List<String> nodes) {
+        int size = nodes.size();
+        if (size == 1) {
+            return nodes.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        String a = nodes.get(first);
+        String b = nodes.get(second);
+        return statsOf(a).cost() <= statsOf(b).cost() ? a : b;
+    }
+
+    @Override
+    public void requestStarted(String node) {
+        statsOf(node).started();
+    }
+
+    @Override
+    public void requestCompleted(String node, long durationNanos, boolean success) {
+        statsOf(node).completed(success ? durationNanos : Math.max(durationNanos, FAILURE_PENALTY_NANOS));
+    }
+
+    private NodeStats statsOf(String node) {
+        return stats.computeIfAbsent(node, k -> new NodeStats());
+    }
+
+    private class NodeStats {
+
+        private double ewmaNanos;
+        private long lastSampleAt;
+        private int outstanding;
+
+        synchronized void started() {
+            outstanding++;
+        }
+
+        synchronized void completed(long durationNanos) {
+            outstanding--;
+            long now = System.nanoTime();
+            if (lastSampleAt == 0 || durationNanos > ewmaNanos) {
+                ewmaNanos = durationNanos;
+            } else {
+                double weight = Math.exp(-(now - lastSampleAt) / decayNanos);
+                ewmaNanos = ewmaNanos * weight + durationNanos * (1 - weight);
+            }
+            lastSampleAt = now;
+        }
+
+        synchronized double cost() {
+            return ewmaNanos * (outstanding + 1);
+        }
+    }
+
+}
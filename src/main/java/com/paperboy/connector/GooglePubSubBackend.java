@@ -1,26 +1,192 @@
 package com.paperboy.connector;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController;
+import com.google.api.gax.core.CredentialsProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.rpc.TransportChannelProvider;
 import com.google.cloud.pubsub.v1.AckReplyConsumer;
 import com.google.cloud.pubsub.v1.Publisher;
 import com.google.cloud.pubsub.v1.Subscriber;
-import com.google.protobuf.ByteString;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.pubsub.v1.PubsubMessage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import redis.clients.jedis.JedisPool;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class GooglePubSubBackend implements MessagingBackend {
 
+    private static final Log LOG = LogFactory.getLog(GooglePubSubBackend.class);
+
     private static final String SUBSCRIPTION_SUFFIX = "-sub-connector";
-    private final ObjectMapper objectMapper;
+    private static final String CONTENT_TYPE_ATTRIBUTE = "content-type";
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private final MessageCodec messageCodec;
     private final ConcurrentHashMap<String, Publisher> publishers = new ConcurrentHashMap<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // the defaults are the ones of the Pub/Sub client
+    private long batchElementCount = 100;
+    private long batchRequestBytes = 1000;
+    private Duration batchDelay = Duration.ofMillis(1);
+    private long maxOutstandingElementCount = 1000;
+    private long maxOutstandingRequestBytes = 100L * 1024 * 1024;
+    private int parallelPullCount = 1;
+    private int subscriberExecutorThreads = 5;
+    private TransportChannelProvider channelProvider;
+    private CredentialsProvider credentialsProvider;
 
+    public GooglePubSubBackend() {
+        this(JsonMessageCodec.shared());
+    }
+
+    public GooglePubSubBackend(MessageCodec messageCodec) {
+        this.messageCodec = messageCodec;
+    }
+
+    /**
+     * @deprecated the pool was never used, use {@link #GooglePubSubBackend()}
+     */
+    @Deprecated
     public GooglePubSubBackend(JedisPool jedisPool) {
-        this.objectMapper = new ObjectMapper();
-        // TODO: configure objectMapper
+        this();
+    }
+
+    /**
+     * @deprecated the pool was never used, use {@link #GooglePubSubBackend(MessageCodec)}
+     */
+    @Deprecated
+    public GooglePubSubBackend(JedisPool jedisPool, MessageCodec messageCodec) {
+        this(messageCodec);
+    }
+
+    public long getBatchElementCount() {
+        return batchElementCount;
+    }
+
+    /**
+     * Number of messages that triggers sending a publisher batch, should be set before publishing.
+     *
+     * @param batchElementCount messages per batch
+     */
+    public void setBatchElementCount(long batchElementCount) {
+        this.batchElementCount = batchElementCount;
+    }
+
+    public long getBatchRequestBytes() {
+        return batchRequestBytes;
+    }
+
+    /**
+     * Payload size that triggers sending a publisher batch, should be set before publishing.
+     *
+     * @param batchRequestBytes bytes per batch
+     */
+    public void setBatchRequestBytes(long batchRequestBytes) {
+        this.batchRequestBytes = batchRequestBytes;
+    }
+
+    public Duration getBatchDelay() {
+        return batchDelay;
+    }
+
+    /**
+     * Max time a published message waits for the batch to fill up, should be set before publishing.
+     *
+     * @param batchDelay delay threshold of a batch
+     */
+    public void setBatchDelay(Duration batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    public long getMaxOutstandingElementCount() {
+        return maxOutstandingElementCount;
+    }
+
+    /**
+     * Max number of received messages being handled per subscriber before pulling blocks, should be set before
+     * listening.
+     *
+     * @param maxOutstandingElementCount max outstanding messages
+     */
+    public void setMaxOutstandingElementCount(long maxOutstandingElementCount) {
+        this.maxOutstandingElementCount = maxOutstandingElementCount;
+    }
+
+    public long getMaxOutstandingRequestBytes() {
+        return maxOutstandingRequestBytes;
+    }
+
+    /**
+     * Max payload of the received messages being handled per subscriber before pulling blocks, should be set before
+     * listening.
+     *
+     * @param maxOutstandingRequestBytes max outstanding bytes
+     */
+    public void setMaxOutstandingRequestBytes(long maxOutstandingRequestBytes) {
+        this.maxOutstandingRequestBytes = maxOutstandingRequestBytes;
+    }
+
+    public int getParallelPullCount() {
+        return parallelPullCount;
+    }
+
+    /**
+     * Number of streaming pulls per subscriber, should be set before listening.
+     *
+     * @param parallelPullCount number of streams
+     */
+    public void setParallelPullCount(int parallelPullCount) {
+        this.parallelPullCount = parallelPullCount;
+    }
+
+    public int getSubscriberExecutorThreads() {
+        return subscriberExecutorThreads;
+    }
+
+    /**
+     * Number of threads the received messages of a subscriber are handled on, should be set before listening.
+     *
+     * @param subscriberExecutorThreads number of handler threads
+     */
+    public void setSubscriberExecutorThreads(int subscriberExecutorThreads) {
+        this.subscriberExecutorThreads = subscriberExecutorThreads;
+    }
+
+    public TransportChannelProvider getChannelProvider() {
+        return channelProvider;
+    }
+
+    /**
+     * Channel of publishers and subscribers instead of the Pub/Sub service, e.g. to the emulator or an in-process fake.
+     *
+     * @param channelProvider channel provider
+     */
+    public void setChannelProvider(TransportChannelProvider channelProvider) {
+        this.channelProvider = channelProvider;
+    }
+
+    public CredentialsProvider getCredentialsProvider() {
+        return credentialsProvider;
+    }
+
+    public void setCredentialsProvider(CredentialsProvider credentialsProvider) {
+        this.credentialsProvider = credentialsProvider;
     }
 
     @Override
@@ -28,35 +194,118 @@ public class GooglePubSubBackend implements MessagingBackend {
 
     }
 
+    /**
+     * Publishes the pending batches and stops the subscribers, waits at most {@value #SHUTDOWN_TIMEOUT_SECONDS} seconds
+     * for each.
+     */
+    @Override
+    public void close() {
+        subscribers.forEach(Subscriber::stopAsync);
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.awaitTerminated(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException | IllegalStateException e) {
+                LOG.warn(String.format("Subscriber '%s' did not stop cleanly!", subscriber.getSubscriptionNameString()), e);
+            }
+        }
+        publishers.values().forEach(Publisher::shutdown);
+        for (Publisher publisher : publishers.values()) {
+            try {
+                if (!publisher.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    LOG.warn(String.format("Publisher of topic '%s' did not flush in time!", publisher.getTopicNameString()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
     private Publisher publisherForTopic(String topic) {
-        publishers.computeIfAbsent(topic, k -> {
+        return publishers.computeIfAbsent(topic, k -> {
+            Publisher.Builder builder = Publisher.newBuilder(topic)
+                    .setBatchingSettings(BatchingSettings.newBuilder()
+                            .setElementCountThreshold(batchElementCount)
+                            .setRequestByteThreshold(batchRequestBytes)
+                            .setDelayThreshold(org.threeten.bp.Duration.ofMillis(batchDelay.toMillis()))
+                            .build());
+            if (channelProvider != null) {
+                builder.setChannelProvider(channelProvider);
+            }
+            if (credentialsProvider != null) {
+                builder.setCredentialsProvider(credentialsProvider);
+            }
             try {
-                return Publisher.newBuilder(topic).build();
+                return builder.build();
             } catch (IOException e) {
                 throw new UncheckedIOException("Unexpected IO error!", e);
             }
         });
-        return publishers.get(topic);
     }
 
     @Override
     public void publish(String topic, Object msg) {
+        publisherForTopic(topic).publish(toPubsubMessage(msg));
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
         try {
-            String msgString = objectMapper.writeValueAsString(msg);
-            PubsubMessage pubsubMessage = PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(msgString)).build();
-            publisherForTopic(topic).publish(pubsubMessage);
-        } catch (IOException e) {
-            throw new UncheckedIOException("Unexpected IO error!", e);
+            ApiFuture<String> messageIdFuture = publisherForTopic(topic).publish(toPubsubMessage(msg));
+            ApiFutures.addCallback(messageIdFuture, new ApiFutureCallback<String>() {
+                @Override
+                public void onFailure(Throwable t) {
+                    future.completeExceptionally(t);
+                }
+
+                @Override
+                public void onSuccess(String messageId) {
+                    future.complete(null);
+                }
+            }, MoreExecutors.directExecutor());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
+
+    private PubsubMessage toPubsubMessage(Object msg) {
+        // the encoded array is never modified afterwards, so it can be wrapped without copying
+        return PubsubMessage.newBuilder()
+                .setData(UnsafeByteOperations.unsafeWrap(EncodedMessage.encode(messageCodec, msg)))
+                .putAttributes(CONTENT_TYPE_ATTRIBUTE, messageCodec.contentType())
+                .build();
     }
 
     @Override
     public void listen(String queue, MessageHandler messageHandler) {
-        Subscriber subscriber = Subscriber.newBuilder(queue + SUBSCRIPTION_SUFFIX, (PubsubMessage message, AckReplyConsumer consumer) -> {
-            messageHandler.handleMessage(queue, message.getData().toStringUtf8());
+        Subscriber.Builder builder = Subscriber.newBuilder(queue + SUBSCRIPTION_SUFFIX, (PubsubMessage message, AckReplyConsumer consumer) -> {
+            try {
+                messageHandler.handleMessage(queue, message.getData().toByteArray(), message.getAttributesOrDefault(CONTENT_TYPE_ATTRIBUTE, null));
+            } catch (RuntimeException e) {
+                LOG.error(String.format("Error while handling message from queue '%s'!", queue), e);
+            }
             consumer.ack();
-        }).build();
+        })
+                .setFlowControlSettings(FlowControlSettings.newBuilder()
+                        .setMaxOutstandingElementCount(maxOutstandingElementCount)
+                        .setMaxOutstandingRequestBytes(maxOutstandingRequestBytes)
+                        .setLimitExceededBehavior(FlowController.LimitExceededBehavior.Block)
+                        .build())
+                .setParallelPullCount(parallelPullCount)
+                .setExecutorProvider(InstantiatingExecutorProvider.newBuilder()
+                        .setExecutorThreadCount(subscriberExecutorThreads)
+                        .build());
+        if (channelProvider != null) {
+            builder.setChannelProvider(channelProvider);
+        }
+        if (credentialsProvider != null) {
+            builder.setCredentialsProvider(credentialsProvider);
+        }
+        Subscriber subscriber = builder.build();
         subscriber.startAsync().awaitRunning();
+        subscribers.add(subscriber);
     }
 
 }
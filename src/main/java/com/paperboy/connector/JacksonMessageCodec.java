@@ -0,0 +1,69 @@
+package com.paperboy.connector;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+
+/**
+ * Base of the Jackson based codecs, the wire format is defined by the {@link ObjectMapper}'s factory.
+ */
+public abstract class JacksonMessageCodec implements MessageCodec {
+
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter writer;
+    private final ObjectWriter messageWriter;
+    private final ObjectWriter authorizationMessageWriter;
+    private final ObjectReader authorizationMessageReader;
+
+    /**
+     * @param objectMapper configured mapper, it must not be reconfigured afterwards
+     */
+    protected JacksonMessageCodec(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        this.writer = objectMapper.writer();
+        this.messageWriter = objectMapper.writerFor(Message.class);
+        this.authorizationMessageWriter = objectMapper.writerFor(AuthorizationMessage.class);
+        this.authorizationMessageReader = objectMapper.readerFor(AuthorizationMessage.class);
+    }
+
+    @Override
+    public byte[] encode(Object msg) {
+        try {
+            // writeValueAsBytes encodes into Jackson's recycled buffers, there is no intermediate String
+            return writerFor(msg).writeValueAsBytes(msg);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not serialize message!", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) throws IOException {
+        return readerFor(type).readValue(data);
+    }
+
+    @Override
+    public <T> T decode(String data, Class<T> type) throws IOException {
+        return readerFor(type).readValue(data);
+    }
+
+    private ObjectWriter writerFor(Object msg) {
+        if (msg instanceof Message) {
+            return messageWriter;
+        }
+        if (msg instanceof AuthorizationMessage) {
+            return authorizationMessageWriter;
+        }
+        return writer;
+    }
+
+    private ObjectReader readerFor(Class<?> type) {
+        if (type == AuthorizationMessage.class) {
+            return authorizationMessageReader;
+        }
+        return objectMapper.readerFor(type);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.paperboy.connector;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.List;
+
+/**
+ * JSON codec, the default wire format of Paperboy.
+ */
+public class JsonMessageCodec extends JacksonMessageCodec {
+
+    public static final String CONTENT_TYPE = "application/json";
+
+    private static final JsonMessageCodec SHARED = new JsonMessageCodec();
+
+    public JsonMessageCodec() {
+        this(new ObjectMapper());
+    }
+
+    /**
+     * @param objectMapper configured mapper, it must not be reconfigured afterwards
+     */
+    public JsonMessageCodec(ObjectMapper objectMapper) {
+        super(objectMapper);
+    }
+
+    /**
+     * @return codec instance shared by the backends when none is configured
+     */
+    public static JsonMessageCodec shared() {
+        return SHARED;
+    }
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+
+    @Override
+    public byte[] encodeArray(List<byte[]> encodedMessages) {
+        int length = 2 + Math.max(encodedMessages.size() - 1, 0);
+        for (byte[] encodedMessage : encodedMessages) {
+            length += encodedMessage.length;
+        }
+        byte[] array = new byte[length];
+        int pos = 0;
+        array[pos++] = '[';
+        for (int i = 0; i < encodedMessages.size(); i++) {
+            if (i > 0) {
+                array[pos++] = ',';
+            }
+            byte[] encodedMessage = encodedMessages.get(i);
+            System.arraycopy(encodedMessage, 0, array, pos, encodedMessage.length);
+            pos += encodedMessage.length;
+        }
+        array[pos] = ']';
+        return array;
+    }
+
+}
@@ -1,20 +1,232 @@
 package com.paperboy.connector;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Kafka backend. Messages are keyed by channel (user for direct messages, websocket for authorizations), so the order
+ * per channel is kept by the partitioning. Queues are consumed by a consumer group shared by the connector instances,
+ * the records of different partitions are handled in parallel and offsets are committed once handled.
+ */
 public class KafkaBackend implements MessagingBackend {
 
+    private static final Log LOG = LogFactory.getLog(KafkaBackend.class);
+
+    private static final String CONTENT_TYPE_HEADER = "content-type";
+    private static final String DEFAULT_GROUP_ID = "paperboy-connector";
+    private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(5);
+
+    private final MessageCodec messageCodec;
+    private final Supplier<Producer<String, byte[]>> producerFactory;
+    private final Supplier<Consumer<String, byte[]>> consumerFactory;
+    private final Header contentTypeHeader;
+    private final List<Consumer<String, byte[]>> consumers = new CopyOnWriteArrayList<>();
+    private final ExecutorService pollExecutor = Executors.newCachedThreadPool();
+    private volatile boolean running = true;
+
+    private int partitionWorkers = Runtime.getRuntime().availableProcessors();
+    private Producer<String, byte[]> producer;
+    private ExecutorService partitionExecutor;
+
+    /**
+     * @param properties Kafka client properties (at least bootstrap.servers), producer and consumer defaults tuned for
+     *                   throughput are applied unless set
+     */
+    public KafkaBackend(Properties properties) {
+        this(properties, JsonMessageCodec.shared());
+    }
+
+    public KafkaBackend(Properties properties, MessageCodec messageCodec) {
+        this(messageCodec,
+                () -> new KafkaProducer<>(producerProperties(properties), new StringSerializer(), new ByteArraySerializer()),
+                () -> new KafkaConsumer<>(consumerProperties(properties), new StringDeserializer(), new ByteArrayDeserializer()));
+    }
+
+    /**
+     * @param messageCodec    codec the messages are encoded with
+     * @param producerFactory creates the shared producer (e.g. a MockProducer for testing)
+     * @param consumerFactory creates a consumer per listened queue (e.g. a MockConsumer for testing)
+     */
+    public KafkaBackend(MessageCodec messageCodec, Supplier<Producer<String, byte[]>> producerFactory, Supplier<Consumer<String, byte[]>> consumerFactory) {
+        this.messageCodec = messageCodec;
+        this.producerFactory = producerFactory;
+        this.consumerFactory = consumerFactory;
+        this.contentTypeHeader = new RecordHeader(CONTENT_TYPE_HEADER, messageCodec.contentType().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int getPartitionWorkers() {
+        return partitionWorkers;
+    }
+
+    /**
+     * Number of threads handling the records of different partitions in parallel (should be set before {@link #init()}).
+     *
+     * @param partitionWorkers number of worker threads
+     */
+    public void setPartitionWorkers(int partitionWorkers) {
+        this.partitionWorkers = partitionWorkers;
+    }
+
+    private static Properties producerProperties(Properties properties) {
+        Properties producerProperties = new Properties();
+        producerProperties.putAll(properties);
+        producerProperties.putIfAbsent(ProducerConfig.LINGER_MS_CONFIG, "5");
+        producerProperties.putIfAbsent(ProducerConfig.BATCH_SIZE_CONFIG, "65536");
+        producerProperties.putIfAbsent(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
+        // retries must not reorder the messages of a channel
+        producerProperties.putIfAbsent(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+        return producerProperties;
+    }
+
+    private static Properties consumerProperties(Properties properties) {
+        Properties consumerProperties = new Properties();
+        consumerProperties.putAll(properties);
+        consumerProperties.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, DEFAULT_GROUP_ID);
+        consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        return consumerProperties;
+    }
+
     @Override
     public void init() {
+        producer = producerFactory.get();
+        partitionExecutor = Executors.newFixedThreadPool(partitionWorkers);
+    }
 
+    @Override
+    public void close() {
+        running = false;
+        consumers.forEach(Consumer::wakeup);
+        pollExecutor.shutdown();
+        if (partitionExecutor != null) {
+            partitionExecutor.shutdown();
+        }
+        if (producer != null) {
+            producer.close(CLOSE_TIMEOUT); // sends the pending batches
+        }
     }
 
+    /**
+     * Waits until the broker has acknowledged the message and throws when it could not be published, like the other
+     * backends. {@link #publishAsync(String, Object)} lets the producer batch the messages of a single thread.
+     */
     @Override
     public void publish(String topic, Object msg) {
+        try {
+            publishAsync(topic, msg).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
 
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            producer.send(toRecord(topic, msg), (metadata, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(null);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
     }
 
+    private ProducerRecord<String, byte[]> toRecord(String topic, Object msg) {
+        return new ProducerRecord<>(topic, null, EncodedMessage.keyOf(msg), EncodedMessage.encode(messageCodec, msg), Collections.singletonList(contentTypeHeader));
+    }
+
+    /**
+     * Starts the poll loop of the queue on a dedicated thread and returns.
+     */
     @Override
     public void listen(String queue, MessageHandler messageHandler) {
+        Consumer<String, byte[]> consumer = consumerFactory.get();
+        consumers.add(consumer);
+        pollExecutor.submit(() -> consume(consumer, queue, messageHandler));
+    }
+
+    private void consume(Consumer<String, byte[]> consumer, String queue, MessageHandler messageHandler) {
+        try {
+            consumer.subscribe(Collections.singletonList(queue));
+            while (running) {
+                try {
+                    pollAndHandle(consumer, queue, messageHandler);
+                } catch (WakeupException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    // e.g. a failed commit after a rebalance, the uncommitted records are delivered again
+                    LOG.error(String.format("Kafka consumer on queue '%s' failed!", queue), e);
+                }
+            }
+        } catch (WakeupException e) {
+            // closing
+        } finally {
+            consumer.close(CLOSE_TIMEOUT);
+        }
+    }
+
+    private void pollAndHandle(Consumer<String, byte[]> consumer, String queue, MessageHandler messageHandler) {
+        ConsumerRecords<String, byte[]> records = consumer.poll(POLL_TIMEOUT);
+        if (records.isEmpty()) {
+            return;
+        }
+        List<CompletableFuture<Void>> handled = new ArrayList<>(records.partitions().size());
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition partition : records.partitions()) {
+            List<ConsumerRecord<String, byte[]>> partitionRecords = records.records(partition);
+            // records of a partition are handled in order, partitions in parallel
+            handled.add(CompletableFuture.runAsync(() -> partitionRecords.forEach(r -> handle(queue, messageHandler, r)), partitionExecutor));
+            offsets.put(partition, new OffsetAndMetadata(partitionRecords.get(partitionRecords.size() - 1).offset() + 1));
+        }
+        CompletableFuture.allOf(handled.toArray(new CompletableFuture[0])).join();
+        consumer.commitSync(offsets);
+    }
 
+    private void handle(String queue, MessageHandler messageHandler, ConsumerRecord<String, byte[]> record) {
+        try {
+            Header contentType = record.headers().lastHeader(CONTENT_TYPE_HEADER);
+            messageHandler.handleMessage(queue, record.value(), contentType != null ? new String(contentType.value(), StandardCharsets.UTF_8) : null);
+        } catch (RuntimeException e) {
+            LOG.error(String.format("Error while handling message from queue '%s'!", queue), e);
+        }
     }
 
 }
@@ -0,0 +1,54 @@
+package com.paperboy.connector;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs tasks in parallel on the given executor, while tasks with the same key run one after another in submission
+ * order. The number of queued and running tasks is bounded, submitting blocks the caller while the bound is reached.
+ */
+class KeyedSerialExecutor {
+
+    private static final CompletableFuture<Void> IDLE = CompletableFuture.completedFuture(null);
+
+    private final Executor executor;
+    private final int capacity;
+    private final Semaphore permits;
+    private final Map<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    KeyedSerialExecutor(Executor executor, int capacity) {
+        this.executor = executor;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * @return future completed when the task has run, failed with a {@link RejectedExecutionException} when the
+     * executor did not take it (e.g. after it was shut down)
+     */
+    CompletableFuture<Void> execute(String key, Runnable task) throws InterruptedException {
+        permits.acquire();
+        // also the first task of a key is chained onto a future, so a rejection fails the future instead of escaping
+        // compute() with the permit taken
+        CompletableFuture<Void> next = tails.compute(key, (k, tail) -> (tail == null ? IDLE : tail.handle((v, e) -> null))
+                .thenRunAsync(task, executor));
+        // registered outside of compute(), a completed future runs the callback right away
+        next.whenComplete((v, e) -> {
+            tails.remove(key, next);
+            permits.release();
+        });
+        return next;
+    }
+
+    /**
+     * @return number of queued and running tasks
+     */
+    int pending() {
+        return capacity - permits.availablePermits();
+    }
+
+}
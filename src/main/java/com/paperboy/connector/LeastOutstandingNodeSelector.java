@@ -0,0 +1,46 @@
+package com.paperboy.connector;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the node with the fewest requests in flight, ties are broken in turn.
+ */
+public class LeastOutstandingNodeSelector implements NodeSelector {
+
+    private final Map<String, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public String select(List<String> nodes) {
+        int start = Math.floorMod(next.getAndIncrement(), nodes.size());
+        String selected = null;
+        int least = Integer.MAX_VALUE;
+        for (int i = 0; i < nodes.size(); i++) {
+            String node = nodes.get((start + i) % nodes.size());
+            int requests = outstandingOf(node).get();
+            if (requests < least) {
+                selected = node;
+                least = requests;
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public void requestStarted(String node) {
+        outstandingOf(node).incrementAndGet();
+    }
+
+    @Override
+    public void requestCompleted(String node, long durationNanos, boolean success) {
+        outstandingOf(node).decrementAndGet();
+    }
+
+    private AtomicInteger outstandingOf(String node) {
+        return outstanding.computeIfAbsent(node, k -> new AtomicInteger());
+    }
+
+}
@@ -0,0 +1,303 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of encoded messages in memory-mapped segment files of a fixed size, a new segment is started when
+ * the current one is full. Records are laid out as
+ * <pre>
+ * length of the rest (int) | CRC32 of the rest (int) | timestamp (long) | topic length (short) | topic
+ *     | key length (short, -1 without key) | key | message
+ * </pre>
+ * and every append ends with a zero length marking the end of the log. The length is written last, so a record is
+ * complete once it is visible. The read position is kept in a checkpoint file; segments behind it are deleted. Appends
+ * needing a segment beyond the max number of segments fail, which bounds the disk space of the outbox.
+ * <p>
+ * On opening, the last segment is scanned up to the first incomplete or corrupt record, which is where appending
+ * continues (a record torn by a crash is dropped). Data is written to the page cache, so it survives a crash of the
+ * process; {@link #close()} flushes it to disk.
+ * <p>
+ * Appends are synchronized, reading and committing is meant to be done by a single thread.
+ */
+class MappedOutbox implements AutoCloseable {
+
+    private static final Log LOG = LogFactory.getLog(MappedOutbox.class);
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CHECKPOINT_FILE = "outbox.checkpoint";
+    private static final long CHECKPOINT_MAGIC = 0x5061706572626f79L;
+    private static final int HEADER_LENGTH = 8;
+    // timestamp, topic length and key length
+    private static final int MIN_LENGTH = 8 + 2 + 2;
+    private static final int END_MARK_LENGTH = 4;
+
+    static final class Entry {
+
+        final String topic;
+        final String key;
+        final long timestamp;
+        final byte[] message;
+        /**
+         * Read position following the entry, to {@link #commit(long)} once it was handled.
+         */
+        final long next;
+
+        Entry(String topic, String key, long timestamp, byte[] message, long next) {
+            this.topic = topic;
+            this.key = key;
+            this.timestamp = timestamp;
+            this.message = message;
+            this.next = next;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final NavigableMap<Long, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+    private final MappedByteBuffer checkpoint;
+    private final CRC32 writeCrc = new CRC32();
+    private final CRC32 readCrc = new CRC32();
+    // guarded by this
+    private long writeSegment;
+    private int writePosition;
+    // positions are the segment id in the upper and the offset in the lower 32 bits
+    private volatile long writeMark;
+    private volatile long readMark;
+
+    private MappedOutbox(Path directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), map(file, Files.size(file)));
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, map(segmentFile(0), segmentSize));
+        }
+        writeSegment = segments.lastKey();
+        writePosition = recover(segments.lastEntry().getValue());
+        writeMark = position(writeSegment, writePosition);
+
+        checkpoint = map(directory.resolve(CHECKPOINT_FILE), 16);
+        long checkpointed = checkpoint.getLong(0);
+        long read = (checkpointed ^ CHECKPOINT_MAGIC) == checkpoint.getLong(8) ? checkpointed : position(segments.firstKey(), 0);
+        if (segmentOf(read) < segments.firstKey()) {
+            read = position(segments.firstKey(), 0);
+        }
+        // the checkpoint may be ahead of records lost with a torn write
+        readMark = Math.min(read, writeMark);
+    }
+
+    /**
+     * @param directory   directory of the segment files, created if missing
+     * @param segmentSize size of new segment files in bytes
+     * @param maxSegments max number of segment files, at least 2
+     */
+    static MappedOutbox open(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("The outbox needs at least 2 segments!");
+        }
+        return new MappedOutbox(directory, segmentSize, maxSegments);
+    }
+
+    boolean isEmpty() {
+        return readMark == writeMark;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @param key key of the message, null if none
+     * @throws IllegalStateException when the outbox is full
+     */
+    synchronized void append(String topic, String key, long timestamp, byte[] message) throws IOException {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key != null ? key.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (keyBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Message key of %d bytes is too long for the outbox!", keyBytes.length));
+        }
+        int length = MIN_LENGTH + topicBytes.length + keyBytes.length + message.length;
+        int recordLength = HEADER_LENGTH + length;
+        if (recordLength + END_MARK_LENGTH > segmentSize) {
+            throw new IllegalArgumentException(String.format("Message of %d bytes does not fit into an outbox segment!", message.length));
+        }
+        MappedByteBuffer segment = segments.get(writeSegment);
+        if (writePosition + recordLength + END_MARK_LENGTH > segment.capacity()) {
+            // segments are only deleted behind the read position, so all of them still hold unread messages
+            if (segments.size() >= maxSegments) {
+                throw new IllegalStateException(String.format("Outbox '%s' is full!", directory));
+            }
+            segment.force();
+            writeSegment++;
+            writePosition = 0;
+            segment = map(segmentFile(writeSegment), segmentSize);
+            segments.put(writeSegment, segment);
+        }
+        ByteBuffer record = segment.duplicate();
+        record.position(writePosition + HEADER_LENGTH);
+        record.putLong(timestamp)
+                .putShort((short) topicBytes.length)
+                .put(topicBytes)
+                .putShort(key != null ? (short) keyBytes.length : -1)
+                .put(keyBytes)
+                .put(message)
+                .putInt(0);
+        record.position(writePosition + HEADER_LENGTH).limit(writePosition + recordLength);
+        writeCrc.reset();
+        writeCrc.update(record);
+        segment.putInt(writePosition + 4, (int) writeCrc.getValue());
+        segment.putInt(writePosition, length);
+        writePosition += recordLength;
+        writeMark = position(writeSegment, writePosition);
+    }
+
+    /**
+     * Reads from the read position on, without moving it (unless only the empty end of a segment was read).
+     *
+     * @param max max number of entries
+     * @return entries in the order they were appended
+     */
+    List<Entry> read(int max) {
+        List<Entry> entries = new ArrayList<>(Math.min(max, 1024));
+        long end = writeMark;
+        long segmentId = segmentOf(readMark);
+        int position = offsetOf(readMark);
+        while (entries.size() < max && position(segmentId, position) != end) {
+            MappedByteBuffer segment = segments.get(segmentId);
+            int length = position + HEADER_LENGTH <= segment.capacity() ? segment.getInt(position) : 0;
+            if (length == 0) {
+                // end of a full segment
+                Long nextSegmentId = segments.higherKey(segmentId);
+                if (nextSegmentId == null) {
+                    break;
+                }
+                segmentId = nextSegmentId;
+                position = 0;
+                continue;
+            }
+            ByteBuffer record = segment.duplicate();
+            record.position(position + HEADER_LENGTH);
+            long timestamp = record.getLong();
+            byte[] topic = new byte[record.getShort() & 0xFFFF];
+            record.get(topic);
+            short keyLength = record.getShort();
+            byte[] key = keyLength >= 0 ? new byte[keyLength] : null;
+            if (key != null) {
+                record.get(key);
+            }
+            byte[] message = new byte[length - MIN_LENGTH - topic.length - (key != null ? key.length : 0)];
+            record.get(message);
+            position += HEADER_LENGTH + length;
+            entries.add(new Entry(new String(topic, StandardCharsets.UTF_8), key != null ? new String(key, StandardCharsets.UTF_8) : null,
+                    timestamp, message, position(segmentId, position)));
+        }
+        if (entries.isEmpty() && position(segmentId, position) != readMark) {
+            // e.g. a segment started before a crash without a complete record
+            commit(position(segmentId, position));
+        }
+        return entries;
+    }
+
+    /**
+     * Moves the read position behind handled entries, deleting the segments before it.
+     *
+     * @param next {@link Entry#next} of the last handled entry
+     */
+    void commit(long next) {
+        checkpoint.putLong(8, next ^ CHECKPOINT_MAGIC);
+        checkpoint.putLong(0, next);
+        readMark = next;
+        long readSegment = segmentOf(next);
+        for (Map.Entry<Long, MappedByteBuffer> segment : segments.headMap(readSegment, false).entrySet()) {
+            segments.remove(segment.getKey());
+            // the mapping is released by the garbage collector
+            try {
+                Files.deleteIfExists(segmentFile(segment.getKey()));
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not delete outbox segment %d!", segment.getKey()), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.values().forEach(MappedByteBuffer::force);
+        checkpoint.force();
+    }
+
+    /**
+     * @return offset behind the last complete record of the segment
+     */
+    private int recover(MappedByteBuffer segment) {
+        int position = 0;
+        while (position + HEADER_LENGTH + END_MARK_LENGTH <= segment.capacity()) {
+            int length = segment.getInt(position);
+            if (length < MIN_LENGTH || position + HEADER_LENGTH + length + END_MARK_LENGTH > segment.capacity()) {
+                break;
+            }
+            ByteBuffer record = segment.duplicate();
+            record.position(position + HEADER_LENGTH).limit(position + HEADER_LENGTH + length);
+            readCrc.reset();
+            readCrc.update(record);
+            if ((int) readCrc.getValue() != segment.getInt(position + 4)) {
+                LOG.warn(String.format("Dropping incomplete outbox record at offset %d.", position));
+                break;
+            }
+            position += HEADER_LENGTH + length;
+        }
+        if (position + END_MARK_LENGTH <= segment.capacity()) {
+            segment.putInt(position, 0);
+        }
+        return position;
+    }
+
+    private Path segmentFile(long segmentId) {
+        return directory.resolve(String.format("%020d%s", segmentId, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long position(long segmentId, int offset) {
+        return segmentId << 32 | offset;
+    }
+
+    private static long segmentOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+}
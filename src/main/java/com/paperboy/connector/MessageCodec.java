@@ -0,0 +1,59 @@
+package com.paperboy.connector;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Encodes outgoing messages into their wire format and decodes incoming ones. A single codec instance is meant to be
+ * shared by the backend and the messaging service, implementations must be thread-safe.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return MIME type of the encoded messages, carried along with the message where the backend supports it
+     */
+    String contentType();
+
+    /**
+     * @return true when the encoded messages are not valid UTF-8 text (they cannot travel over text-only transports)
+     */
+    boolean isBinary();
+
+    /**
+     * Encodes a message (e.g. {@link Message}, {@link AuthorizationMessage}).
+     *
+     * @param msg POJO of the message
+     * @return encoded message
+     * @throws IllegalArgumentException when the message cannot be encoded
+     */
+    byte[] encode(Object msg);
+
+    /**
+     * Joins already encoded messages into a single encoded array, keeping their order.
+     *
+     * @param encodedMessages messages returned by {@link #encode(Object)}
+     * @return encoded array of the messages
+     */
+    byte[] encodeArray(List<byte[]> encodedMessages);
+
+    /**
+     * Decodes a message.
+     *
+     * @param data encoded message
+     * @param type type of the message
+     * @return decoded message
+     * @throws IOException when the message cannot be decoded
+     */
+    <T> T decode(byte[] data, Class<T> type) throws IOException;
+
+    /**
+     * Decodes a message received as text.
+     *
+     * @param data encoded message
+     * @param type type of the message
+     * @return decoded message
+     * @throws IOException when the message cannot be decoded
+     */
+    <T> T decode(String data, Class<T> type) throws IOException;
+
+}
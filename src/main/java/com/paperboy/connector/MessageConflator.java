@@ -0,0 +1,142 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps the latest payload per channel and conflation key, and publishes them at a fixed interval. Callers only
+ * replace the pending value, the flusher takes it out atomically, so a payload is either published in the current
+ * flush or in the next one. Payloads pending at {@link #close()} are still published, later ones are failed.
+ */
+class MessageConflator {
+
+    private static final Log LOG = LogFactory.getLog(MessageConflator.class);
+
+    private final Function<Message, CompletableFuture<Void>> publisher;
+    private final Map<ConflationKey, Pending> pending = new ConcurrentHashMap<>();
+    private final LongAdder conflated = new LongAdder();
+    private final ScheduledExecutorService flushExecutor;
+    private volatile boolean closed;
+
+    MessageConflator(Duration interval, Function<Message, CompletableFuture<Void>> publisher) {
+        this.publisher = publisher;
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.flushExecutor.scheduleAtFixedRate(this::flush, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return future completed when the payload (or the one it was conflated into) has been published
+     */
+    CompletableFuture<Void> add(String channel, Payload payload) {
+        String conflationKey = payload instanceof ConflatedPayload ? ((ConflatedPayload) payload).conflationKey() : null;
+        if (closed) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Message conflator is closed!"));
+        }
+        CompletableFuture<Void> future = pending.compute(new ConflationKey(channel, conflationKey), (k, previous) -> {
+            if (previous == null) {
+                return new Pending(payload, new CompletableFuture<>());
+            }
+            conflated.increment();
+            Payload conflatedPayload = payload instanceof ConflatedPayload ? ((ConflatedPayload) payload).conflate(previous.payload) : payload;
+            return new Pending(conflatedPayload, previous.future);
+        }).future;
+        if (closed) {
+            // close() may have flushed before the insert, the payload must not be left behind
+            flush();
+        }
+        return future;
+    }
+
+    /**
+     * @return number of payloads replaced by a later one
+     */
+    long conflatedCount() {
+        return conflated.sum();
+    }
+
+    void close() {
+        // set before the last flush, an add() inserting after it sees the flag and flushes itself
+        closed = true;
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void flush() {
+        for (ConflationKey key : pending.keySet()) {
+            Pending p = pending.remove(key);
+            if (p == null) {
+                continue;
+            }
+            try {
+                publisher.apply(new Message(null, key.channel, p.payload)).whenComplete((v, e) -> {
+                    if (e != null) {
+                        LOG.error(String.format("Could not publish conflated message on channel '%s'!", key.channel), e);
+                        p.future.completeExceptionally(e);
+                    } else {
+                        p.future.complete(null);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // must not escape, it would cancel the scheduled flushes
+                LOG.error(String.format("Could not publish conflated message on channel '%s'!", key.channel), e);
+                p.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Pending {
+
+        private final Payload payload;
+        private final CompletableFuture<Void> future;
+
+        Pending(Payload payload, CompletableFuture<Void> future) {
+            this.payload = payload;
+            this.future = future;
+        }
+    }
+
+    private static class ConflationKey {
+
+        private final String channel;
+        private final String conflationKey;
+
+        ConflationKey(String channel, String conflationKey) {
+            this.channel = channel;
+            this.conflationKey = conflationKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ConflationKey that = (ConflationKey) o;
+            return Objects.equals(channel, that.channel) && Objects.equals(conflationKey, that.conflationKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(channel, conflationKey);
+        }
+    }
+
+}
@@ -1,8 +1,22 @@
 package com.paperboy.connector;
 
+import java.nio.charset.StandardCharsets;
+
 @FunctionalInterface
 public interface MessageHandler {
 
     void handleMessage(String topic, String message);
 
+    /**
+     * Called by backends receiving raw bytes along with their content type (when known). By default the message is
+     * handled as UTF-8 text.
+     *
+     * @param topic       name of the topic/queue
+     * @param message     encoded message
+     * @param contentType MIME type of the message, null when it is not carried by the backend
+     */
+    default void handleMessage(String topic, byte[] message, String contentType) {
+        handleMessage(topic, new String(message, StandardCharsets.UTF_8));
+    }
+
 }
@@ -1,9 +1,39 @@
 package com.paperboy.connector;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface MessageSender {
 
     void sendToUser(String userId, Payload payload);
 
     void sendToChannel(String channel, Payload payload);
 
+    /**
+     * Non-blocking variant of {@link #sendToUser(String, Payload)}, by default the synchronous call is wrapped.
+     *
+     * @return future completed when the message has been accepted
+     */
+    default CompletableFuture<Void> sendToUserAsync(String userId, Payload payload) {
+        try {
+            sendToUser(userId, payload);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #sendToChannel(String, Payload)}, by default the synchronous call is wrapped.
+     *
+     * @return future completed when the message has been accepted
+     */
+    default CompletableFuture<Void> sendToChannelAsync(String channel, Payload payload) {
+        try {
+            sendToChannel(channel, payload);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
 }
@@ -1,5 +1,7 @@
 package com.paperboy.connector;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Interface to implement by a supported messaging backend (e.g. Redis, RabbitMQ, etc.).
  */
@@ -18,6 +20,23 @@ public interface MessagingBackend {
      */
     void publish(String topic, Object msg);
 
+    /**
+     * Publish a message on the given topic/channel without blocking the caller on network I/O. Backends should override
+     * the default (which simply publishes synchronously) with their native asynchronous API.
+     *
+     * @param topic name of the target topic
+     * @param msg   POJO of the message
+     * @return future completed when the backend has accepted the message
+     */
+    default CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        try {
+            publish(topic, msg);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     /**
      * Starts listening to a given queue and registers a callback. Regular queue-like messaging should be used here, only a single backend instance should process a message, no fan-out/broadcast!
      *
@@ -1,76 +1,454 @@
 package com.paperboy.connector;
 
 import com.auth0.jwt.exceptions.JWTVerificationException;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MessagingService implements MessageSender {
 
     private static final Log LOG = LogFactory.getLog(MessagingService.class);
 
+    private static final int DEFAULT_SUBSCRIPTION_QUEUE_CAPACITY = 1000;
+    private static final Duration DEFAULT_CONFLATION_INTERVAL = Duration.ofMillis(100);
+
     private final MessagingBackend messagingBackend;
     private final AuthorizationTokenService authorizationTokenService;
     private final PaperboyCallbackHandler paperboyCallbackHandler;
     private final ExecutorService executorService;
-    private final ObjectMapper objectMapper;
+    private final MessageCodec messageCodec;
+    private final SubscriptionRegistry subscriptionRegistry = new SubscriptionRegistry();
+    private final LongAdder skippedUserMessages = new LongAdder();
+    private final LongAdder skippedChannelMessages = new LongAdder();
+
+    private volatile boolean subscriptionTracking = false;
+    private Duration subscriptionLease = Duration.ZERO;
+    private int subscriptionWorkers = Runtime.getRuntime().availableProcessors();
+    private int subscriptionQueueCapacity = DEFAULT_SUBSCRIPTION_QUEUE_CAPACITY;
+    private ExecutorService subscriptionExecutor;
+    private boolean ownSubscriptionExecutor;
+    private KeyedSerialExecutor subscriptionRequestExecutor;
+    private volatile Set<String> conflatedChannels = Set.of();
+    private Duration conflationInterval = DEFAULT_CONFLATION_INTERVAL;
+    // created on the first conflated message, guarded by this
+    private volatile MessageConflator messageConflator;
+    private boolean closed;
+    private ConnectorMetrics metrics = ConnectorMetrics.NOOP;
+    private final String backendName;
 
     public MessagingService(MessagingBackend messagingBackend, AuthorizationTokenService authorizationTokenService, PaperboyCallbackHandler paperboyCallbackHandler) {
+        this(messagingBackend, authorizationTokenService, paperboyCallbackHandler, JsonMessageCodec.shared());
+    }
+
+    public MessagingService(MessagingBackend messagingBackend, AuthorizationTokenService authorizationTokenService, PaperboyCallbackHandler paperboyCallbackHandler, MessageCodec messageCodec) {
         this.messagingBackend = messagingBackend;
         this.authorizationTokenService = authorizationTokenService;
         this.paperboyCallbackHandler = paperboyCallbackHandler;
         this.executorService = Executors.newSingleThreadExecutor();
-        this.objectMapper = new ObjectMapper();
-        // TODO: configure objectMapper
+        this.messageCodec = messageCodec;
+        this.backendName = messagingBackend.getClass().getSimpleName();
+    }
+
+    public ConnectorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Metrics the publishes, skipped messages and the subscription queue are reported to (should be set before
+     * {@link #init()}).
+     *
+     * @param metrics metrics implementation
+     */
+    public void setMetrics(ConnectorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public int getSubscriptionWorkers() {
+        return subscriptionWorkers;
+    }
+
+    /**
+     * Number of threads processing subscription requests (should be set before {@link #init()}), ignored when an
+     * executor is set via {@link #setSubscriptionExecutor(ExecutorService)}.
+     *
+     * @param subscriptionWorkers number of worker threads
+     */
+    public void setSubscriptionWorkers(int subscriptionWorkers) {
+        this.subscriptionWorkers = subscriptionWorkers;
+    }
+
+    public int getSubscriptionQueueCapacity() {
+        return subscriptionQueueCapacity;
+    }
+
+    /**
+     * Max number of subscription requests queued or in process (should be set before {@link #init()}). When reached,
+     * the backend's listener is blocked until a request is done, so the rest stays queued in the messaging backend.
+     *
+     * @param subscriptionQueueCapacity max number of pending requests
+     */
+    public void setSubscriptionQueueCapacity(int subscriptionQueueCapacity) {
+        this.subscriptionQueueCapacity = subscriptionQueueCapacity;
+    }
+
+    /**
+     * Executor processing subscription requests (should be set before {@link #init()}), e.g. a virtual thread per task
+     * executor on JDK 21+. Requests of the same websocket are still processed in order. It is not shut down by
+     * {@link #close()}.
+     *
+     * @param subscriptionExecutor executor for subscription requests
+     */
+    public void setSubscriptionExecutor(ExecutorService subscriptionExecutor) {
+        this.subscriptionExecutor = subscriptionExecutor;
+    }
+
+    /**
+     * @return number of subscription requests queued or in process
+     */
+    public int getPendingSubscriptionRequests() {
+        return subscriptionRequestExecutor != null ? subscriptionRequestExecutor.pending() : 0;
+    }
+
+    public boolean isSubscriptionTracking() {
+        return subscriptionTracking;
+    }
+
+    /**
+     * Enables skipping messages to channels and users without a subscription authorized by this connector. Subscriptions
+     * are tracked from the authorizations and removed by {@link #sendSubscriptionCloseMessage(String, String)}.
+     * <p>
+     * It must only be enabled when this connector instance authorizes every subscription (e.g. a single instance), as
+     * subscriptions authorized by other instances, or before a restart, are not known.
+     *
+     * @param subscriptionTracking true to skip messages nobody is subscribed to
+     */
+    public void setSubscriptionTracking(boolean subscriptionTracking) {
+        this.subscriptionTracking = subscriptionTracking;
+    }
+
+    public Duration getSubscriptionLease() {
+        return subscriptionLease;
+    }
+
+    /**
+     * Time after which a tracked subscription is dropped unless it is authorized again or renewed, zero (the default)
+     * keeps it until it is closed (should be set before {@link #init()}). A lease needs heartbeats: the connector
+     * listens on the 'paperboy-subscription-heartbeat' queue, where the Paperboy nodes have to send an
+     * {@link AuthorizationMessage} for each open subscription more often than the lease, so subscriptions of
+     * disconnected websockets expire. Leases are only enforced once the first heartbeat has been received, so with
+     * nodes not sending heartbeats, subscriptions are kept until closed, as without a lease.
+     *
+     * @param subscriptionLease lease of a tracked subscription
+     */
+    public void setSubscriptionLease(Duration subscriptionLease) {
+        this.subscriptionLease = subscriptionLease;
+        subscriptionRegistry.setLease(subscriptionLease);
+    }
+
+    /**
+     * @return number of messages to users skipped because of subscription tracking
+     */
+    public long getSkippedUserMessages() {
+        return skippedUserMessages.sum();
+    }
+
+    /**
+     * @return number of messages to channels skipped because of subscription tracking
+     */
+    public long getSkippedChannelMessages() {
+        return skippedChannelMessages.sum();
+    }
+
+    /**
+     * @return number of channels with a tracked subscription
+     */
+    public int getSubscribedChannels() {
+        return subscriptionRegistry.channelCount();
+    }
+
+    public Set<String> getConflatedChannels() {
+        return conflatedChannels;
+    }
+
+    /**
+     * Channels whose messages are conflated, only the latest payload sent within the conflation interval is published.
+     * Payloads implementing {@link ConflatedPayload} are conflated on any channel, per conflation key. Conflated
+     * messages are delayed by up to the interval, so they may overtake non-conflated ones of the same channel.
+     *
+     * @param conflatedChannels channels to conflate
+     */
+    public void setConflatedChannels(Collection<String> conflatedChannels) {
+        this.conflatedChannels = Set.copyOf(conflatedChannels);
+    }
+
+    public Duration getConflationInterval() {
+        return conflationInterval;
+    }
+
+    /**
+     * Interval conflated messages are published at (should be set before {@link #init()}).
+     *
+     * @param conflationInterval conflation interval
+     */
+    public void setConflationInterval(Duration conflationInterval) {
+        this.conflationInterval = conflationInterval;
+    }
+
+    /**
+     * @return number of messages to channels replaced by a later one because of conflation
+     */
+    public long getConflatedMessages() {
+        return messageConflator != null ? messageConflator.conflatedCount() : 0;
+    }
+
+    private boolean conflate(String channel, Payload payload) {
+        return payload instanceof ConflatedPayload || conflatedChannels.contains(channel);
+    }
+
+    private CompletableFuture<Void> sendConflated(String channel, Payload payload) {
+        MessageConflator conflator = messageConflator;
+        if (conflator == null) {
+            synchronized (this) {
+                if (closed) {
+                    return CompletableFuture.failedFuture(new IllegalStateException("Messaging service is closed!"));
+                }
+                if (messageConflator == null) {
+                    messageConflator = new MessageConflator(conflationInterval, msg -> publishAsync("paperboy-message", msg));
+                }
+                conflator = messageConflator;
+            }
+        }
+        return conflator.add(channel, payload);
+    }
+
+    private boolean skipUser(String userId) {
+        if (!subscriptionTracking || subscriptionRegistry.hasUserSubscribers(userId)) {
+            return false;
+        }
+        skippedUserMessages.increment();
+        metrics.messageSkipped(false);
+        return true;
+    }
+
+    private boolean skipChannel(String channel) {
+        if (!subscriptionTracking || subscriptionRegistry.hasChannelSubscribers(channel)) {
+            return false;
+        }
+        skippedChannelMessages.increment();
+        metrics.messageSkipped(true);
+        return true;
     }
 
     public void sendToUser(String userId, Payload payload) {
+        if (skipUser(userId)) {
+            return;
+        }
         Message msg = new Message(userId, null, payload);
-        messagingBackend.publish("paperboy-message", msg);
+        publish("paperboy-message", msg);
     }
 
     public void sendToChannel(String channel, Payload payload) {
+        if (skipChannel(channel)) {
+            return;
+        }
+        if (conflate(channel, payload)) {
+            sendConflated(channel, payload);
+            return;
+        }
         Message msg = new Message(null, channel, payload);
-        messagingBackend.publish("paperboy-message", msg);
+        publish("paperboy-message", msg);
+    }
+
+    public CompletableFuture<Void> sendToUserAsync(String userId, Payload payload) {
+        if (skipUser(userId)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Message msg = new Message(userId, null, payload);
+        return publishAsync("paperboy-message", msg);
+    }
+
+    public CompletableFuture<Void> sendToChannelAsync(String channel, Payload payload) {
+        if (skipChannel(channel)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (conflate(channel, payload)) {
+            return sendConflated(channel, payload);
+        }
+        Message msg = new Message(null, channel, payload);
+        return publishAsync("paperboy-message", msg);
     }
 
     public void sendSubscriptionCloseMessage(String userId, String channel) {
+        authorizationTokenService.invalidateAccess(userId, channel);
+        subscriptionRegistry.unregister(userId, channel);
         AuthorizationMessage msg = new AuthorizationMessage(null, null, userId, channel);
-        messagingBackend.publish("paperboy-subscription-close", msg);
+        publish("paperboy-subscription-close", msg);
+    }
+
+    private void publish(String topic, Object msg) {
+        if (metrics == ConnectorMetrics.NOOP) {
+            messagingBackend.publish(topic, msg);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            messagingBackend.publish(topic, msg);
+        } catch (RuntimeException e) {
+            metrics.publishFailed(backendName, topic, System.nanoTime() - start, e);
+            throw e;
+        }
+        metrics.published(backendName, topic, System.nanoTime() - start);
+    }
+
+    private CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        if (metrics == ConnectorMetrics.NOOP) {
+            return messagingBackend.publishAsync(topic, msg);
+        }
+        long start = System.nanoTime();
+        return messagingBackend.publishAsync(topic, msg).whenComplete((v, e) -> {
+            if (e != null) {
+                metrics.publishFailed(backendName, topic, System.nanoTime() - start, e);
+            } else {
+                metrics.published(backendName, topic, System.nanoTime() - start);
+            }
+        });
     }
 
     public void init() {
+        if (subscriptionExecutor == null) {
+            subscriptionExecutor = Executors.newFixedThreadPool(subscriptionWorkers);
+            ownSubscriptionExecutor = true;
+        }
+        subscriptionRequestExecutor = new KeyedSerialExecutor(subscriptionExecutor, subscriptionQueueCapacity);
+        metrics.bindSubscriptionQueue(subscriptionRequestExecutor::pending);
         messagingBackend.init();
         executorService.submit(() -> {
             try {
                 LOG.info("Starting Paperboy subscription request listener...");
-                messagingBackend.listen("paperboy-subscription-request", (channel, message) -> {
-                    try {
-                        AuthorizationMessage msgIn = objectMapper.readValue(message, AuthorizationMessage.class);
-                        AuthorizationMessage msgOut = authorizationTokenService.authorize(msgIn.getToken(), msgIn.getWsId());
-                        messagingBackend.publish("paperboy-subscription-authorized", msgOut);
-                        LOG.info(String.format("Successful authorization for '%s'.", msgOut.getWsId()));
-                        paperboyCallbackHandler.onSubscription(MessagingService.this, msgOut.getUserId(), msgOut.getChannel());
-                    } catch (JsonProcessingException e) {
-                        LOG.error("Could not deserialize subscription request!", e);
-                    } catch (JWTVerificationException e) {
-                        LOG.error("Error during token verification!", e);
-                    } catch (Exception e) {
-                        LOG.error("Unexpected error during authorization!", e);
-                    }
-                });
+                messagingBackend.listen("paperboy-subscription-request", new SubscriptionRequestHandler());
+                if (subscriptionTracking && !subscriptionLease.isZero()) {
+                    LOG.info("Starting Paperboy subscription heartbeat listener...");
+                    messagingBackend.listen("paperboy-subscription-heartbeat", new SubscriptionHeartbeatHandler());
+                }
             } catch (Exception e) {
                 LOG.error("Unexpected error during initialization of request listener!", e);
             }
         });
     }
 
+    private void submitSubscription(AuthorizationMessage msgIn) {
+        try {
+            // requests of the same websocket are kept in order, others are authorized in parallel
+            String wsId = msgIn.getWsId() != null ? msgIn.getWsId() : "";
+            subscriptionRequestExecutor.execute(wsId, () -> authorizeSubscription(msgIn)).whenComplete((v, e) -> {
+                // authorizeSubscription() handles its own errors, so this is a request rejected by a closed executor
+                if (e != null) {
+                    LOG.warn(String.format("Dropped subscription request of '%s'!", msgIn.getWsId()), e);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while submitting subscription request!", e);
+        }
+    }
+
+    private void renewSubscription(AuthorizationMessage msgIn) {
+        if (subscriptionRegistry.enforceLease()) {
+            LOG.info(String.format("Received the first subscription heartbeat, tracked subscriptions expire after %s without one.", subscriptionLease));
+        }
+        subscriptionRegistry.register(msgIn.getWsId(), msgIn.getUserId(), msgIn.getChannel());
+    }
+
+    private void authorizeSubscription(AuthorizationMessage msgIn) {
+        try {
+            AuthorizationMessage msgOut = authorizationTokenService.authorize(msgIn.getToken(), msgIn.getWsId());
+            // tracked before the callback, so its initial messages are not skipped
+            subscriptionRegistry.register(msgOut.getWsId(), msgOut.getUserId(), msgOut.getChannel());
+            publish("paperboy-subscription-authorized", msgOut);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Successful authorization for '%s'.", msgOut.getWsId()));
+            }
+            paperboyCallbackHandler.onSubscription(MessagingService.this, msgOut.getUserId(), msgOut.getChannel());
+        } catch (JWTVerificationException e) {
+            LOG.error("Error during token verification!", e);
+        } catch (Exception e) {
+            LOG.error("Unexpected error during authorization!", e);
+        }
+    }
+
+    /**
+     * Messages without a content type (e.g. text-only backends) are expected to be JSON unless a text codec is configured.
+     */
+    private MessageCodec codecFor(String contentType) {
+        if (contentType == null ? !messageCodec.isBinary() : contentType.equals(messageCodec.contentType())) {
+            return messageCodec;
+        }
+        return JsonMessageCodec.shared();
+    }
+
     public void close() {
+        MessageConflator conflator;
+        synchronized (this) {
+            closed = true;
+            conflator = messageConflator;
+        }
+        if (conflator != null) {
+            conflator.close();
+        }
         messagingBackend.close();
         executorService.shutdown();
+        if (ownSubscriptionExecutor) {
+            subscriptionExecutor.shutdown();
+        }
+    }
+
+    private class SubscriptionRequestHandler implements MessageHandler {
+
+        @Override
+        public void handleMessage(String topic, String message) {
+            try {
+                submitSubscription(codecFor(null).decode(message, AuthorizationMessage.class));
+            } catch (IOException e) {
+                LOG.error("Could not deserialize subscription request!", e);
+            }
+        }
+
+        @Override
+        public void handleMessage(String topic, byte[] message, String contentType) {
+            try {
+                submitSubscription(codecFor(contentType).decode(message, AuthorizationMessage.class));
+            } catch (IOException e) {
+                LOG.error("Could not deserialize subscription request!", e);
+            }
+        }
+    }
+
+    private class SubscriptionHeartbeatHandler implements MessageHandler {
+
+        @Override
+        public void handleMessage(String topic, String message) {
+            try {
+                renewSubscription(codecFor(null).decode(message, AuthorizationMessage.class));
+            } catch (IOException e) {
+                LOG.error("Could not deserialize subscription heartbeat!", e);
+            }
+        }
+
+        @Override
+        public void handleMessage(String topic, byte[] message, String contentType) {
+            try {
+                renewSubscription(codecFor(contentType).decode(message, AuthorizationMessage.class));
+            } catch (IOException e) {
+                LOG.error("Could not deserialize subscription heartbeat!", e);
+            }
+        }
     }
 }
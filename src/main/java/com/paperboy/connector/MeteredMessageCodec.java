@@ -0,0 +1,53 @@
+package com.paperboy.connector;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Codec reporting the serialization time of the wrapped one, backends should be created with it to get serialization
+ * metrics.
+ */
+public class MeteredMessageCodec implements MessageCodec {
+
+    private final MessageCodec delegate;
+    private final ConnectorMetrics metrics;
+
+    public MeteredMessageCodec(MessageCodec delegate, ConnectorMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public boolean isBinary() {
+        return delegate.isBinary();
+    }
+
+    @Override
+    public byte[] encode(Object msg) {
+        long start = System.nanoTime();
+        byte[] encoded = delegate.encode(msg);
+        metrics.encoded(System.nanoTime() - start, encoded.length);
+        return encoded;
+    }
+
+    @Override
+    public byte[] encodeArray(List<byte[]> encodedMessages) {
+        return delegate.encodeArray(encodedMessages);
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) throws IOException {
+        return delegate.decode(data, type);
+    }
+
+    @Override
+    public <T> T decode(String data, Class<T> type) throws IOException {
+        return delegate.decode(data, type);
+    }
+
+}
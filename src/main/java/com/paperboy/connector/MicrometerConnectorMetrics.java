@@ -0,0 +1,130 @@
+package com.paperboy.connector;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Micrometer implementation of the connector metrics (requires micrometer-core on the classpath). Meters are created
+ * once per backend and topic and looked up without allocation afterwards.
+ */
+public class MicrometerConnectorMetrics implements ConnectorMetrics {
+
+    private static final String PREFIX = "paperboy.connector.";
+
+    private final MeterRegistry registry;
+    private final Map<String, Map<String, Timer>> publishTimers = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Map<Class<?>, Counter>>> publishErrorCounters = new ConcurrentHashMap<>();
+    private final Timer encodeTimer;
+    private final DistributionSummary encodedBytes;
+    private final Timer tokenValidTimer;
+    private final Timer tokenInvalidTimer;
+    private final Timer accessGrantedTimer;
+    private final Timer accessDeniedTimer;
+    private final Timer discoveryTimer;
+    private final Counter failovers;
+    private final Counter failedFailovers;
+    private final Counter skippedChannelMessages;
+    private final Counter skippedUserMessages;
+
+    public MicrometerConnectorMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.encodeTimer = Timer.builder(PREFIX + "encode").description("Message serialization time").publishPercentileHistogram().register(registry);
+        this.encodedBytes = DistributionSummary.builder(PREFIX + "encode.size").baseUnit("bytes").register(registry);
+        this.tokenValidTimer = Timer.builder(PREFIX + "authorization.verify").tag("outcome", "valid").register(registry);
+        this.tokenInvalidTimer = Timer.builder(PREFIX + "authorization.verify").tag("outcome", "invalid").register(registry);
+        this.accessGrantedTimer = Timer.builder(PREFIX + "authorization.access").tag("outcome", "granted").register(registry);
+        this.accessDeniedTimer = Timer.builder(PREFIX + "authorization.access").tag("outcome", "denied").register(registry);
+        this.discoveryTimer = Timer.builder(PREFIX + "embedded.discovery").register(registry);
+        this.failovers = Counter.builder(PREFIX + "embedded.failovers").tag("outcome", "switched").register(registry);
+        this.failedFailovers = Counter.builder(PREFIX + "embedded.failovers").tag("outcome", "failed").register(registry);
+        this.skippedChannelMessages = Counter.builder(PREFIX + "subscription.skipped").tag("target", "channel").register(registry);
+        this.skippedUserMessages = Counter.builder(PREFIX + "subscription.skipped").tag("target", "user").register(registry);
+    }
+
+    @Override
+    public void published(String backend, String topic, long durationNanos) {
+        publishTimer(backend, topic).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void publishFailed(String backend, String topic, long durationNanos, Throwable error) {
+        publishErrorCounter(backend, topic, error.getClass()).increment();
+    }
+
+    private Counter publishErrorCounter(String backend, String topic, Class<?> exception) {
+        Map<String, Map<Class<?>, Counter>> topics = publishErrorCounters.get(backend);
+        Map<Class<?>, Counter> counters = topics != null ? topics.get(topic) : null;
+        Counter counter = counters != null ? counters.get(exception) : null;
+        if (counter == null) {
+            counter = publishErrorCounters.computeIfAbsent(backend, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(topic, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(exception, k -> registry.counter(PREFIX + "publish.errors",
+                            "backend", backend, "topic", topic, "exception", exception.getSimpleName()));
+        }
+        return counter;
+    }
+
+    private Timer publishTimer(String backend, String topic) {
+        Map<String, Timer> timers = publishTimers.get(backend);
+        Timer timer = timers != null ? timers.get(topic) : null;
+        if (timer == null) {
+            timer = publishTimers.computeIfAbsent(backend, k -> new ConcurrentHashMap<>()).computeIfAbsent(topic, k ->
+                    Timer.builder(PREFIX + "publish")
+                            .description("Time until the backend accepted a message")
+                            .tags("backend", backend, "topic", topic)
+                            .publishPercentileHistogram()
+                            .register(registry));
+        }
+        return timer;
+    }
+
+    @Override
+    public void encoded(long durationNanos, int bytes) {
+        encodeTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+        encodedBytes.record(bytes);
+    }
+
+    @Override
+    public void tokenVerified(long durationNanos, boolean valid) {
+        (valid ? tokenValidTimer : tokenInvalidTimer).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void accessChecked(long durationNanos, boolean granted) {
+        (granted ? accessGrantedTimer : accessDeniedTimer).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void messageSkipped(boolean channel) {
+        (channel ? skippedChannelMessages : skippedUserMessages).increment();
+    }
+
+    @Override
+    public void bindSubscriptionQueue(IntSupplier pendingRequests) {
+        Gauge.builder(PREFIX + "subscription.queue", pendingRequests, IntSupplier::getAsInt).strongReference(true).register(registry);
+    }
+
+    @Override
+    public void embeddedDiscoveryCompleted(long durationNanos, int nodeCount) {
+        discoveryTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void bindEmbeddedNodes(IntSupplier nodeCount) {
+        Gauge.builder(PREFIX + "embedded.nodes", nodeCount, IntSupplier::getAsInt).strongReference(true).register(registry);
+    }
+
+    @Override
+    public void embeddedFailover(String fromNode, String toNode) {
+        (toNode != null ? failovers : failedFailovers).increment();
+    }
+
+}
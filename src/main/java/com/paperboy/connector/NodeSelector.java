@@ -0,0 +1,23 @@
+package com.paperboy.connector;
+
+import java.util.List;
+
+/**
+ * Picks the embedded node a queue is subscribed on. The backend reports every request to a node (subscriptions and
+ * instance id lookups) with its duration, so implementations can prefer idle and fast nodes. Called concurrently.
+ */
+public interface NodeSelector {
+
+    /**
+     * @param nodes reachable nodes, never empty
+     * @return one of the nodes
+     */
+    String select(List<String> nodes);
+
+    default void requestStarted(String node) {
+    }
+
+    default void requestCompleted(String node, long durationNanos, boolean success) {
+    }
+
+}
@@ -0,0 +1,387 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorator keeping the messages the wrapped backend failed to publish in a local outbox (memory-mapped segment files,
+ * see {@link MappedOutbox}) instead of failing the publisher. While the outbox holds messages, new ones are appended
+ * behind them without calling the backend, so they keep their order and publishers do not wait for a backend that is
+ * down. Messages are handed to the backend without waiting for the earlier ones of their key (see
+ * {@link EncodedMessage#keyOf(Object)}) to be accepted, so the backend can batch them, but a message is only resolved
+ * after them: once a message of a key has been stored, the later ones are stored behind it, also when the backend has
+ * accepted them meanwhile, so a key ends with its latest message. A background replayer drains the outbox in batches
+ * once the backend accepts messages again, the messages being passed as {@link EncodedMessage} with their key to the
+ * backend. The replayer sends the messages of a key one after the other and stops a key at its first failure, so a
+ * replayed message never overtakes an earlier one of its key either. Delivery is at-least-once: a message accepted
+ * behind a stored one of its key is delivered again by the replay, and replayed messages accepted behind a failed one
+ * are sent again after a restart.
+ * <p>
+ * The codec has to be the one of the wrapped backend. Messages pending after a restart are replayed from the outbox
+ * directory, messages older than the retention are dropped instead of replayed. Publishes fail once the outbox has
+ * reached its max size.
+ */
+public class OutboxMessagingBackend implements MessagingBackend {
+
+    private static final Log LOG = LogFactory.getLog(OutboxMessagingBackend.class);
+
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+    private static final Duration DEFAULT_RETENTION = Duration.ofHours(24);
+    private static final int DEFAULT_REPLAY_BATCH_SIZE = 100;
+    private static final Duration DEFAULT_REPLAY_INTERVAL = Duration.ofSeconds(1);
+
+    private final MessagingBackend delegate;
+    private final MessageCodec messageCodec;
+    private final Path directory;
+    private final AtomicLong outboxedMessages = new AtomicLong();
+    private final AtomicLong replayedMessages = new AtomicLong();
+    private final AtomicLong expiredMessages = new AtomicLong();
+    // key ("" for messages without one) -> its latest publish that has neither been accepted nor stored yet
+    private final Map<String, KeyedPublish> unresolved = new ConcurrentHashMap<>();
+    // positions of replayed messages accepted behind a failed one, not committed yet (used by the replayer only)
+    private final Set<Long> deliveredAhead = new HashSet<>();
+
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private Duration retention = DEFAULT_RETENTION;
+    private int replayBatchSize = DEFAULT_REPLAY_BATCH_SIZE;
+    private Duration replayInterval = DEFAULT_REPLAY_INTERVAL;
+    private MappedOutbox outbox;
+    private ScheduledExecutorService replayExecutor;
+
+    /**
+     * @param delegate     backend publishing the messages
+     * @param messageCodec codec of the backend
+     * @param directory    directory of the outbox files, it must not be shared with another instance
+     */
+    public OutboxMessagingBackend(MessagingBackend delegate, MessageCodec messageCodec, Path directory) {
+        this.delegate = delegate;
+        this.messageCodec = messageCodec;
+        this.directory = directory;
+    }
+
+    /**
+     * @return wrapped backend
+     */
+    public MessagingBackend getDelegate() {
+        return delegate;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Size of the outbox segment files in bytes (should be set before {@link #init()}), 64 MiB by default. A message
+     * has to fit into a single segment; segments are deleted once all of their messages are replayed.
+     *
+     * @param segmentSize segment file size
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Max disk space of the outbox in bytes, rounded to whole segments of at least 2 (should be set before
+     * {@link #init()}), 1 GiB by default. Publishes fail instead of being stored while the outbox is full.
+     *
+     * @param maxSize max outbox size
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public Duration getRetention() {
+        return retention;
+    }
+
+    /**
+     * Max age of an outboxed message, older ones are dropped by the replayer instead of being sent, also while the
+     * backend is down (24 hours by default).
+     *
+     * @param retention max age of replayed messages
+     */
+    public void setRetention(Duration retention) {
+        this.retention = retention;
+    }
+
+    public int getReplayBatchSize() {
+        return replayBatchSize;
+    }
+
+    /**
+     * Number of messages read from the outbox at once when replaying (should be set before {@link #init()}). The
+     * messages of different keys in a batch are handed to the backend together, the ones of a key one after the other;
+     * the next batch is sent once all of them were accepted.
+     *
+     * @param replayBatchSize messages per batch
+     */
+    public void setReplayBatchSize(int replayBatchSize) {
+        this.replayBatchSize = replayBatchSize;
+    }
+
+    public Duration getReplayInterval() {
+        return replayInterval;
+    }
+
+    /**
+     * Delay between two tries of draining the outbox (should be set before {@link #init()}).
+     *
+     * @param replayInterval replay delay
+     */
+    public void setReplayInterval(Duration replayInterval) {
+        this.replayInterval = replayInterval;
+    }
+
+    public long getOutboxedMessages() {
+        return outboxedMessages.get();
+    }
+
+    public long getReplayedMessages() {
+        return replayedMessages.get();
+    }
+
+    public long getExpiredMessages() {
+        return expiredMessages.get();
+    }
+
+    /**
+     * @return true while messages wait in the outbox
+     */
+    public boolean hasPendingMessages() {
+        return !outbox.isEmpty();
+    }
+
+    @Override
+    public void init() {
+        try {
+            outbox = MappedOutbox.open(directory, segmentSize, (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxSize / segmentSize)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!outbox.isEmpty()) {
+            LOG.info(String.format("Outbox '%s' holds messages of a previous run, replaying them.", directory));
+        }
+        delegate.init();
+        replayExecutor = Executors.newSingleThreadScheduledExecutor();
+        replayExecutor.scheduleWithFixedDelay(this::replay, replayInterval.toMillis(), replayInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publish(String topic, Object msg) {
+        try {
+            publishAsync(topic, msg).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return future completed when the backend has accepted the message or it has been stored in the outbox
+     */
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        String key = EncodedMessage.keyOf(msg);
+        String chain = key != null ? key : "";
+        KeyedPublish publish = new KeyedPublish();
+        KeyedPublish previous = unresolved.put(chain, publish);
+        CompletableFuture<Void> previousHandedOver = previous != null ? previous.handedOver : CompletableFuture.completedFuture(null);
+        CompletableFuture<Boolean> previousStored = previous != null ? previous.resolved.exceptionally(e -> false) : CompletableFuture.completedFuture(false);
+        previousHandedOver.thenCompose(v -> {
+            // while the outbox holds messages, new ones are stored behind them without calling the backend
+            CompletableFuture<Void> sent = outbox.isEmpty() ? send(topic, msg) : null;
+            publish.handedOver.complete(null);
+            if (sent == null) {
+                return previousStored.thenCompose(stored -> resolve(topic, msg, key, false, stored, null));
+            }
+            return sent.handle((r, e) -> e).thenCombine(previousStored, (e, stored) -> resolve(topic, msg, key, true, stored, e))
+                    .thenCompose(resolved -> resolved);
+        }).whenComplete((stored, e) -> {
+            unresolved.remove(chain, publish);
+            if (e != null) {
+                publish.resolved.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } else {
+                publish.resolved.complete(stored);
+            }
+        });
+        return publish.resolved.thenApply(stored -> null);
+    }
+
+    private CompletableFuture<Void> send(String topic, Object msg) {
+        try {
+            return delegate.publishAsync(topic, msg);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Called once the earlier messages of the key are resolved.
+     *
+     * @param handedToBackend true when the message was sent to the backend
+     * @param previousStored  true when the previous message of the key was stored in the outbox
+     * @param failure         error of the backend, null if it accepted the message
+     * @return future completed with true when the message was stored, false when the backend accepted it
+     */
+    private CompletableFuture<Boolean> resolve(String topic, Object msg, String key, boolean handedToBackend, boolean previousStored, Throwable failure) {
+        if (handedToBackend && failure == null && !previousStored) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (failure != null) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof IllegalArgumentException) {
+                // the message cannot be encoded, replaying would not help
+                return CompletableFuture.failedFuture(cause);
+            }
+            if (outbox.isEmpty()) {
+                LOG.warn(String.format("Backend failed to publish, storing messages in outbox '%s' until it is back.", directory), cause);
+            }
+        }
+        // a message accepted behind a stored one of its key is stored as well, so it is replayed after that one again
+        return appendToOutbox(topic, msg, key).thenApply(v -> true);
+    }
+
+    private CompletableFuture<Void> appendToOutbox(String topic, Object msg, String key) {
+        try {
+            outbox.append(topic, key, System.currentTimeMillis(), EncodedMessage.encode(messageCodec, msg));
+            outboxedMessages.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new UncheckedIOException(e));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Publish of a message, in the order of its key.
+     */
+    private static final class KeyedPublish {
+
+        // the message has been sent to the backend, or it is to be stored as the outbox is in use
+        private final CompletableFuture<Void> handedOver = new CompletableFuture<>();
+        // true when the message has been stored in the outbox, false when the backend has accepted it
+        private final CompletableFuture<Boolean> resolved = new CompletableFuture<>();
+
+    }
+
+    private void replay() {
+        try {
+            long replayed = 0;
+            while (!outbox.isEmpty()) {
+                List<MappedOutbox.Entry> entries = outbox.read(replayBatchSize);
+                if (entries.isEmpty()) {
+                    break;
+                }
+                long expiredBefore = System.currentTimeMillis() - retention.toMillis();
+                // the messages of a key are sent one after the other and not after a failed one, different keys are
+                // handed over together, so backends can batch them natively
+                Map<String, CompletableFuture<Void>> chains = new HashMap<>();
+                List<CompletableFuture<Void>> calls = new ArrayList<>(entries.size());
+                for (MappedOutbox.Entry entry : entries) {
+                    if (entry.timestamp < expiredBefore || deliveredAhead.contains(entry.next)) {
+                        calls.add(CompletableFuture.completedFuture(null));
+                        continue;
+                    }
+                    String chain = entry.key != null ? entry.key : "";
+                    CompletableFuture<Void> previous = chains.get(chain);
+                    CompletableFuture<Void> call = previous == null ? send(entry) : previous.thenCompose(v -> send(entry));
+                    chains.put(chain, call);
+                    calls.add(call);
+                }
+                CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).handle((v, e) -> null).join();
+                int accepted = 0;
+                while (accepted < calls.size() && !calls.get(accepted).isCompletedExceptionally()) {
+                    accepted++;
+                }
+                if (accepted > 0) {
+                    outbox.commit(entries.get(accepted - 1).next);
+                    for (MappedOutbox.Entry entry : entries.subList(0, accepted)) {
+                        if (deliveredAhead.remove(entry.next)) {
+                            continue;
+                        }
+                        if (entry.timestamp < expiredBefore) {
+                            expiredMessages.incrementAndGet();
+                        } else {
+                            replayed++;
+                        }
+                    }
+                }
+                if (accepted < entries.size()) {
+                    // accepted behind the failed message, they are skipped by the next try
+                    for (int i = accepted; i < entries.size(); i++) {
+                        MappedOutbox.Entry entry = entries.get(i);
+                        if (!calls.get(i).isCompletedExceptionally() && entry.timestamp >= expiredBefore && deliveredAhead.add(entry.next)) {
+                            replayed++;
+                        }
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Backend is not back yet, replaying the outbox later.", failureOf(calls.get(accepted)));
+                    }
+                    break;
+                }
+            }
+            if (replayed > 0) {
+                replayedMessages.addAndGet(replayed);
+                LOG.info(String.format("Replayed %d message(s) from outbox '%s'%s.", replayed, directory, outbox.isEmpty() ? ", it is empty now" : ""));
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the scheduled runs
+            LOG.error("Error while replaying the outbox!", e);
+        }
+    }
+
+    private CompletableFuture<Void> send(MappedOutbox.Entry entry) {
+        return send(entry.topic, new EncodedMessage(entry.message, entry.key));
+    }
+
+    private static Throwable failureOf(CompletableFuture<Void> call) {
+        try {
+            call.join();
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Override
+    public void listen(String queue, MessageHandler messageHandler) {
+        delegate.listen(queue, messageHandler);
+    }
+
+    @Override
+    public void close() {
+        replayExecutor.shutdown();
+        try {
+            replayExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+        outbox.close();
+    }
+
+}
@@ -5,6 +5,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.security.Principal;
+import java.util.concurrent.CompletableFuture;
 
 public class PaperboyConnector {
 
@@ -15,10 +16,46 @@ public class PaperboyConnector {
     private EmbeddedBackend embeddedBackend;
 
     public PaperboyConnector(MessagingBackend messagingBackend, PaperboyCallbackHandler paperboyCallbackHandler) {
+        this(messagingBackend, paperboyCallbackHandler, JsonMessageCodec.shared());
+    }
+
+    /**
+     * @param messagingBackend        backend to use, it should be created with the same codec
+     * @param paperboyCallbackHandler application callbacks
+     * @param messageCodec            codec for decoding the messages received from Paperboy
+     */
+    public PaperboyConnector(MessagingBackend messagingBackend, PaperboyCallbackHandler paperboyCallbackHandler, MessageCodec messageCodec) {
         this.authorizationTokenService = new AuthorizationTokenService(paperboyCallbackHandler);
-        this.messagingService = new MessagingService(messagingBackend, this.authorizationTokenService, paperboyCallbackHandler);
-        if (messagingBackend instanceof EmbeddedBackend) {
-            embeddedBackend = (EmbeddedBackend) messagingBackend;
+        this.messagingService = new MessagingService(messagingBackend, this.authorizationTokenService, paperboyCallbackHandler, messageCodec);
+        MessagingBackend backend = messagingBackend;
+        // the embedded backend's callbacks have to reach it also when it is wrapped, e.g. by an outbox
+        while (backend instanceof OutboxMessagingBackend) {
+            backend = ((OutboxMessagingBackend) backend).getDelegate();
+        }
+        if (backend instanceof EmbeddedBackend) {
+            embeddedBackend = (EmbeddedBackend) backend;
+        }
+    }
+
+    public AuthorizationTokenService getAuthorizationTokenService() {
+        return authorizationTokenService;
+    }
+
+    public MessagingService getMessagingService() {
+        return messagingService;
+    }
+
+    /**
+     * Reports the connector's metrics (should be set before {@link #init()}). Serialization is only reported when the
+     * backend was created with a {@link MeteredMessageCodec}.
+     *
+     * @param metrics metrics implementation, e.g. {@link MicrometerConnectorMetrics}
+     */
+    public void setMetrics(ConnectorMetrics metrics) {
+        authorizationTokenService.setMetrics(metrics);
+        messagingService.setMetrics(metrics);
+        if (embeddedBackend != null) {
+            embeddedBackend.setMetrics(metrics);
         }
     }
 
@@ -35,7 +72,9 @@ public class PaperboyConnector {
             throw new IllegalArgumentException("Authentication required!");
         }
 
-        LOG.debug(String.format("Generating token for '%s' to access channel '%s'.", principal.getName(), channel));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Generating token for '%s' to access channel '%s'.", principal.getName(), channel));
+        }
         return authorizationTokenService.generateToken(principal.getName(), channel);
     }
 
@@ -47,13 +86,23 @@ public class PaperboyConnector {
         messagingService.sendToChannel(channel, payload);
     }
 
+    public CompletableFuture<Void> sendToUserAsync(String userId, Payload payload) {
+        return messagingService.sendToUserAsync(userId, payload);
+    }
+
+    public CompletableFuture<Void> sendToChannelAsync(String channel, Payload payload) {
+        return messagingService.sendToChannelAsync(channel, payload);
+    }
+
     public void closeSubscription(String userId, String channel) {
         messagingService.sendSubscriptionCloseMessage(userId, channel);
     }
 
     public void messageCallbackForEmbeddedBackend(String topic, Object msg, String providedEmbeddedBackendToken) {
         if (embeddedBackend != null) {
-            LOG.debug(String.format("Message callback received for '%s'.", topic));
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(String.format("Message callback received for '%s'.", topic));
+            }
             embeddedBackend.messageCallback(topic, msg, providedEmbeddedBackendToken);
         }
     }
@@ -1,71 +1,340 @@
 package com.paperboy.connector;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 public class RabbitBackend implements MessagingBackend {
 
-    private static final ThreadLocal<Channel> channelThreadLocal = new ThreadLocal<>();
+    private static final Log LOG = LogFactory.getLog(RabbitBackend.class);
+
+    private static final int DEFAULT_PUBLISHER_CHANNELS = 8;
+    private static final int DEFAULT_PREFETCH_COUNT = 100;
+    private static final long CHANNEL_BORROW_TIMEOUT_SECONDS = 5;
+    private static final long ACK_FLUSH_INTERVAL_MILLIS = 100;
 
     private final ConnectionFactory connectionFactory;
-    private final ObjectMapper objectMapper;
+    private final MessageCodec messageCodec;
+    private final AMQP.BasicProperties messageProperties;
+    private final List<BatchAckingConsumer> consumers = new CopyOnWriteArrayList<>();
     private Connection publisherConnection;
+    private Connection consumerConnection;
+    private BlockingQueue<ConfirmingChannel> publisherChannels;
+    private ScheduledExecutorService ackFlushExecutor;
+
+    private int publisherChannelCount = DEFAULT_PUBLISHER_CHANNELS;
+    private int prefetchCount = DEFAULT_PREFETCH_COUNT;
+    private int consumersPerQueue = 1;
+    private int ackBatchSize = 1;
 
     public RabbitBackend(ConnectionFactory connectionFactory) {
+        this(connectionFactory, JsonMessageCodec.shared());
+    }
+
+    public RabbitBackend(ConnectionFactory connectionFactory, MessageCodec messageCodec) {
         this.connectionFactory = connectionFactory;
-        this.objectMapper = new ObjectMapper();
-        // TODO: configure objectMapper
+        this.messageCodec = messageCodec;
+        this.messageProperties = new AMQP.BasicProperties.Builder().contentType(messageCodec.contentType()).build();
+    }
+
+    public int getPublisherChannelCount() {
+        return publisherChannelCount;
+    }
+
+    /**
+     * Size of the publisher channel pool (should be set before {@link #init()}), publishing threads wait for a free
+     * channel when all are in use.
+     *
+     * @param publisherChannelCount number of publisher channels
+     */
+    public void setPublisherChannelCount(int publisherChannelCount) {
+        this.publisherChannelCount = publisherChannelCount;
+    }
+
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Max number of unacknowledged deliveries per consumer (basic.qos), should be set before listening.
+     *
+     * @param prefetchCount prefetch count per consumer
+     */
+    public void setPrefetchCount(int prefetchCount) {
+        this.prefetchCount = prefetchCount;
+    }
+
+    public int getConsumersPerQueue() {
+        return consumersPerQueue;
+    }
+
+    /**
+     * Number of consumers (each on its own channel, so deliveries are handled in parallel) per listened queue, should be
+     * set before listening.
+     *
+     * @param consumersPerQueue number of consumers
+     */
+    public void setConsumersPerQueue(int consumersPerQueue) {
+        this.consumersPerQueue = consumersPerQueue;
+    }
+
+    public int getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    /**
+     * Number of handled deliveries acknowledged at once with a single multiple-ack, should be set before
+     * {@link #init()}. Fewer pending deliveries are acknowledged every {@value #ACK_FLUSH_INTERVAL_MILLIS} ms. It should
+     * be less than {@link #getPrefetchCount()}.
+     *
+     * @param ackBatchSize deliveries per ack
+     */
+    public void setAckBatchSize(int ackBatchSize) {
+        this.ackBatchSize = ackBatchSize;
     }
 
     @Override
     public void init() {
         try {
             this.publisherConnection = connectionFactory.newConnection();
+            this.consumerConnection = connectionFactory.newConnection();
         } catch (IOException e) {
             throw new UncheckedIOException("Unexpected IO error!", e);
         } catch (TimeoutException e) {
             throw new RuntimeException("RabbitMQ timeout error!", e);
         }
+        publisherChannels = new ArrayBlockingQueue<>(publisherChannelCount);
+        for (int i = 0; i < publisherChannelCount; i++) {
+            publisherChannels.add(new ConfirmingChannel());
+        }
+        if (ackBatchSize > 1) {
+            ackFlushExecutor = Executors.newSingleThreadScheduledExecutor();
+            ackFlushExecutor.scheduleWithFixedDelay(() -> consumers.forEach(BatchAckingConsumer::ackHandled), ACK_FLUSH_INTERVAL_MILLIS, ACK_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ackFlushExecutor != null) {
+            ackFlushExecutor.shutdown();
+        }
+        consumers.forEach(BatchAckingConsumer::ackHandled);
+        closeConnection(consumerConnection);
+        closeConnection(publisherConnection);
     }
 
     @Override
     public void publish(String topic, Object msg) {
         try {
-            String msgString = objectMapper.writeValueAsString(msg);
-            Channel channel = channelThreadLocal.get();
-            if (channel == null) {
-                channel = publisherConnection.createChannel();
-                channelThreadLocal.set(channel);
-            }
-            channel.basicPublish(topic, "", null, msgString.getBytes());
-        } catch (JsonProcessingException e) {
-            throw new IllegalArgumentException("Could not serialize message!", e);
+            publishOnPooledChannel(topic, EncodedMessage.encode(messageCodec, msg));
         } catch (IOException e) {
             throw new UncheckedIOException("Unexpected IO error!", e);
         }
     }
 
+    /**
+     * Publishes on a channel in confirm mode, the returned future completes when the broker confirms the message.
+     */
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        try {
+            return publishOnPooledChannel(topic, EncodedMessage.encode(messageCodec, msg));
+        } catch (RuntimeException e) {
+            // also a channel closed by the broker while publishing
+            return CompletableFuture.failedFuture(e);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new UncheckedIOException("Unexpected IO error!", e));
+        }
+    }
+
+    private CompletableFuture<Void> publishOnPooledChannel(String topic, byte[] body) throws IOException {
+        ConfirmingChannel confirmingChannel;
+        try {
+            confirmingChannel = publisherChannels.poll(CHANNEL_BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a publisher channel!", e);
+        }
+        if (confirmingChannel == null) {
+            throw new IllegalStateException("No RabbitMQ publisher channel available!");
+        }
+        try {
+            return confirmingChannel.publish(publisherConnection, topic, messageProperties, body);
+        } finally {
+            publisherChannels.add(confirmingChannel);
+        }
+    }
+
     @Override
     public void listen(String queue, MessageHandler messageHandler) {
         try {
-            Channel channel = connectionFactory.newConnection().createChannel();
-            channel.basicConsume(queue, false, (consumerTag, message) -> {
-                messageHandler.handleMessage(queue, new String(message.getBody()));
-                channel.basicAck(message.getEnvelope().getDeliveryTag(), false);
-            }, consumerTag -> {
-                // nop
-            });
+            for (int i = 0; i < consumersPerQueue; i++) {
+                Channel channel = consumerConnection.createChannel();
+                channel.basicQos(prefetchCount);
+                BatchAckingConsumer consumer = new BatchAckingConsumer(channel, queue, messageHandler);
+                consumers.add(consumer);
+                channel.basicConsume(queue, false, consumer);
+            }
         } catch (IOException e) {
             throw new UncheckedIOException("Unexpected IO error!", e);
-        } catch (TimeoutException e) {
-            throw new RuntimeException("RabbitMQ timeout error!", e);
+        }
+    }
+
+    private static void closeConnection(Connection connection) {
+        if (connection != null && connection.isOpen()) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                LOG.error("Could not close RabbitMQ connection!", e);
+            }
+        }
+    }
+
+    /**
+     * Pooled publisher channel in confirm mode, it is re-opened when the broker has closed it. The confirms outstanding
+     * on a closed channel are failed by its shutdown listener, as they will never arrive.
+     */
+    private static class ConfirmingChannel implements ConfirmListener {
+
+        private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstandingConfirms = new ConcurrentSkipListMap<>();
+        // swapped by the borrowing thread and by the shutdown listener
+        private volatile Channel channel;
+
+        CompletableFuture<Void> publish(Connection connection, String topic, AMQP.BasicProperties properties, byte[] body) throws IOException {
+            Channel current = channel;
+            if (current == null || !current.isOpen()) {
+                current = open(connection);
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            long seqNo = current.getNextPublishSeqNo();
+            outstandingConfirms.put(seqNo, future);
+            try {
+                current.basicPublish(topic, "", properties, body);
+            } catch (IOException | RuntimeException e) {
+                outstandingConfirms.remove(seqNo);
+                throw e;
+            }
+            // the shutdown listener may have failed the outstanding confirms before this one was added
+            if (!current.isOpen() && outstandingConfirms.remove(seqNo) != null) {
+                future.completeExceptionally(new IllegalStateException("RabbitMQ publisher channel was closed!", current.getCloseReason()));
+            }
+            return future;
+        }
+
+        private synchronized Channel open(Connection connection) throws IOException {
+            // sequence numbers restart on the new channel, confirms of the old one will never arrive
+            failOutstanding(new IllegalStateException("RabbitMQ publisher channel was closed!"));
+            Channel newChannel = connection.createChannel();
+            newChannel.confirmSelect();
+            newChannel.addConfirmListener(this);
+            newChannel.addShutdownListener(cause -> closed(newChannel, cause));
+            channel = newChannel;
+            return newChannel;
+        }
+
+        /**
+         * Drops the closed channel, so the next publish opens a new one instead of waiting for its confirms.
+         */
+        private synchronized void closed(Channel closedChannel, ShutdownSignalException cause) {
+            if (channel != closedChannel) {
+                return;
+            }
+            channel = null;
+            if (!cause.isInitiatedByApplication()) {
+                LOG.warn("RabbitMQ publisher channel was closed by the broker!", cause);
+            }
+            failOutstanding(new IllegalStateException("RabbitMQ publisher channel was closed!", cause));
+        }
+
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) {
+            confirmed(deliveryTag, multiple).forEach(f -> f.complete(null));
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) {
+            confirmed(deliveryTag, multiple).forEach(f -> f.completeExceptionally(new IllegalStateException("Message was rejected by the broker!")));
+        }
+
+        private List<CompletableFuture<Void>> confirmed(long deliveryTag, boolean multiple) {
+            ConcurrentNavigableMap<Long, CompletableFuture<Void>> confirmed = multiple
+                    ? outstandingConfirms.headMap(deliveryTag, true)
+                    : outstandingConfirms.subMap(deliveryTag, true, deliveryTag, true);
+            List<CompletableFuture<Void>> futures = new ArrayList<>(confirmed.values());
+            confirmed.clear();
+            return futures;
+        }
+
+        private void failOutstanding(Exception e) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>(outstandingConfirms.values());
+            outstandingConfirms.clear();
+            futures.forEach(f -> f.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Acknowledges handled deliveries with a single multiple-ack once the ack batch size is reached.
+     */
+    private class BatchAckingConsumer extends DefaultConsumer {
+
+        private final String queue;
+        private final MessageHandler messageHandler;
+        private long lastHandledTag;
+        private int unacked;
+
+        BatchAckingConsumer(Channel channel, String queue, MessageHandler messageHandler) {
+            super(channel);
+            this.queue = queue;
+            this.messageHandler = messageHandler;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            try {
+                messageHandler.handleMessage(queue, body, properties.getContentType());
+            } catch (RuntimeException e) {
+                LOG.error(String.format("Error while handling message from queue '%s'!", queue), e);
+            }
+            synchronized (this) {
+                lastHandledTag = envelope.getDeliveryTag();
+                if (++unacked >= ackBatchSize) {
+                    ackHandled();
+                }
+            }
+        }
+
+        synchronized void ackHandled() {
+            if (unacked == 0 || !getChannel().isOpen()) {
+                return;
+            }
+            try {
+                getChannel().basicAck(lastHandledTag, unacked > 1);
+                unacked = 0;
+            } catch (IOException e) {
+                LOG.error(String.format("Could not acknowledge messages of queue '%s'!", queue), e);
+            }
         }
     }
 
@@ -1,50 +1,248 @@
 package com.paperboy.connector;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.SafeEncoder;
 
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class RedisBackend implements MessagingBackend {
 
+    private static final Log LOG = LogFactory.getLog(RedisBackend.class);
+
+    private static final int DEFAULT_ASYNC_PUBLISHER_THREADS = 4;
+    private static final int DEFAULT_DRAIN_BATCH_SIZE = 100;
+    private static final int DEFAULT_PIPELINE_BATCH_SIZE = 256;
+    private static final Duration DEFAULT_PIPELINE_LINGER = Duration.ZERO;
+    // bounds how long close() waits for the consumers blocked in BLPOP
+    private static final int BLPOP_TIMEOUT_SECONDS = 1;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
     private final JedisPool jedisPool;
-    private final ObjectMapper objectMapper;
+    private final MessageCodec messageCodec;
+    private final ExecutorService asyncPublisherExecutor;
+    private final ExecutorService listenerExecutor = Executors.newCachedThreadPool();
+    private volatile boolean running = true;
+
+    private int consumersPerQueue = 1;
+    private int drainBatchSize = DEFAULT_DRAIN_BATCH_SIZE;
+    private boolean pipelinedPublishing = false;
+    private int pipelineConnections = 1;
+    private int pipelineBatchSize = DEFAULT_PIPELINE_BATCH_SIZE;
+    private Duration pipelineLinger = DEFAULT_PIPELINE_LINGER;
+    private RedisPipelinedPublisher pipelinedPublisher;
 
     public RedisBackend(JedisPool jedisPool) {
+        this(jedisPool, JsonMessageCodec.shared());
+    }
+
+    public RedisBackend(JedisPool jedisPool, MessageCodec messageCodec) {
+        this(jedisPool, messageCodec, DEFAULT_ASYNC_PUBLISHER_THREADS);
+    }
+
+    /**
+     * @param jedisPool             pool the connections are taken from
+     * @param messageCodec          codec the messages are encoded with
+     * @param asyncPublisherThreads number of threads {@link #publishAsync(String, Object)} serializes and publishes on
+     */
+    public RedisBackend(JedisPool jedisPool, MessageCodec messageCodec, int asyncPublisherThreads) {
         this.jedisPool = jedisPool;
-        this.objectMapper = new ObjectMapper();
-        // TODO: configure objectMapper
+        this.messageCodec = messageCodec;
+        this.asyncPublisherExecutor = Executors.newFixedThreadPool(asyncPublisherThreads);
+    }
+
+    public int getConsumersPerQueue() {
+        return consumersPerQueue;
+    }
+
+    /**
+     * Number of consumer threads (each with its own connection) per listened queue, should be set before listening.
+     *
+     * @param consumersPerQueue number of consumers
+     */
+    public void setConsumersPerQueue(int consumersPerQueue) {
+        this.consumersPerQueue = consumersPerQueue;
+    }
+
+    public int getDrainBatchSize() {
+        return drainBatchSize;
+    }
+
+    /**
+     * Max number of queued elements a consumer takes in a single round trip once BLPOP has returned.
+     *
+     * @param drainBatchSize max elements per drain
+     */
+    public void setDrainBatchSize(int drainBatchSize) {
+        this.drainBatchSize = drainBatchSize;
+    }
+
+    public boolean isPipelinedPublishing() {
+        return pipelinedPublishing;
+    }
+
+    /**
+     * Enables pipelined publishing (should be set before {@link #init()}). Publishes of all threads are collected and
+     * sent as pipelines over {@link #getPipelineConnections()} dedicated connections, each pipeline holds up to
+     * {@link #getPipelineBatchSize()} publishes or waits at most {@link #getPipelineLinger()} for more. With the default
+     * zero linger a pipeline takes whatever has queued up while the previous one was in flight.
+     *
+     * @param pipelinedPublishing true to pipeline publishes
+     */
+    public void setPipelinedPublishing(boolean pipelinedPublishing) {
+        this.pipelinedPublishing = pipelinedPublishing;
+    }
+
+    public int getPipelineConnections() {
+        return pipelineConnections;
+    }
+
+    public void setPipelineConnections(int pipelineConnections) {
+        this.pipelineConnections = pipelineConnections;
+    }
+
+    public int getPipelineBatchSize() {
+        return pipelineBatchSize;
+    }
+
+    public void setPipelineBatchSize(int pipelineBatchSize) {
+        this.pipelineBatchSize = pipelineBatchSize;
+    }
+
+    public Duration getPipelineLinger() {
+        return pipelineLinger;
+    }
+
+    public void setPipelineLinger(Duration pipelineLinger) {
+        this.pipelineLinger = pipelineLinger;
     }
 
     @Override
     public void init() {
-        // nop
+        if (pipelinedPublishing) {
+            pipelinedPublisher = new RedisPipelinedPublisher(jedisPool, pipelineConnections, pipelineBatchSize, pipelineLinger);
+        }
     }
 
     @Override
     public void publish(String topic, Object msg) {
+        byte[] body = EncodedMessage.encode(messageCodec, msg);
+        if (pipelinedPublisher != null) {
+            try {
+                pipelinedPublisher.publish(SafeEncoder.encode(topic), body).join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+            return;
+        }
+        try (Jedis jedis = jedisPool.getResource()) {
+            jedis.publish(SafeEncoder.encode(topic), body);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+        if (pipelinedPublisher != null) {
+            try {
+                return pipelinedPublisher.publish(SafeEncoder.encode(topic), EncodedMessage.encode(messageCodec, msg));
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        // Jedis is blocking, so serialization and I/O are moved onto the publisher threads
+        return CompletableFuture.runAsync(() -> publish(topic, msg), asyncPublisherExecutor);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (pipelinedPublisher != null) {
+            pipelinedPublisher.close();
+        }
+        asyncPublisherExecutor.shutdown();
+        listenerExecutor.shutdown();
         try {
-            try (Jedis jedis = jedisPool.getResource()) {
-                jedis.publish(topic, objectMapper.writeValueAsString(msg));
+            if (!listenerExecutor.awaitTermination(BLPOP_TIMEOUT_SECONDS * 2, TimeUnit.SECONDS)) {
+                LOG.warn("Redis listeners did not stop in time!");
             }
-        } catch (JsonProcessingException e) {
-            throw new IllegalArgumentException("Could not serialize message!", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Starts the consumers of the queue on dedicated threads and returns.
+     */
     @Override
     public void listen(String queue, MessageHandler messageHandler) {
-        Jedis jedis = jedisPool.getResource();
-        while (true) {
-            List<String> messages = jedis.blpop(10, queue);
-            if (messages != null) {
-                // Redis always returns the name of the list as the 1st element so we skip
-                messages.stream().skip(1).forEach(m -> {
-                    messageHandler.handleMessage(queue, m);
-                });
+        LOG.info(String.format("Starting %d consumer(s) on queue '%s'.", consumersPerQueue, queue));
+        for (int i = 0; i < consumersPerQueue; i++) {
+            listenerExecutor.submit(() -> consume(queue, messageHandler));
+        }
+    }
+
+    private void consume(String queue, MessageHandler messageHandler) {
+        while (running) {
+            try (Jedis jedis = jedisPool.getResource()) {
+                while (running) {
+                    List<String> messages = jedis.blpop(BLPOP_TIMEOUT_SECONDS, queue);
+                    if (messages == null) {
+                        continue;
+                    }
+                    // Redis always returns the name of the list as the 1st element so we skip
+                    handle(queue, messageHandler, messages.get(1));
+                    // the list is likely to hold more, those are taken in bulk without blocking
+                    List<String> drained;
+                    do {
+                        drained = drain(jedis, queue);
+                        for (String message : drained) {
+                            handle(queue, messageHandler, message);
+                        }
+                    } while (running && drained.size() == drainBatchSize);
+                }
+            } catch (JedisException e) {
+                if (running) {
+                    LOG.error(String.format("Redis consumer on queue '%s' failed, reconnecting...", queue), e);
+                    sleepBeforeReconnect();
+                }
             }
         }
     }
+
+    private List<String> drain(Jedis jedis, String queue) {
+        // LRANGE + LTRIM in a transaction, so concurrent consumers never take the same elements
+        Transaction transaction = jedis.multi();
+        Response<List<String>> messages = transaction.lrange(queue, 0, drainBatchSize - 1);
+        transaction.ltrim(queue, drainBatchSize, -1);
+        transaction.exec();
+        return messages.get();
+    }
+
+    private void handle(String queue, MessageHandler messageHandler, String message) {
+        try {
+            messageHandler.handleMessage(queue, message);
+        } catch (RuntimeException e) {
+            LOG.error(String.format("Error while handling message from queue '%s'!", queue), e);
+        }
+    }
+
+    private void sleepBeforeReconnect() {
+        try {
+            Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
 }
@@ -0,0 +1,172 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects publishes of many threads and sends them as Jedis pipelines over a few dedicated connections. A pipeline
+ * is flushed when the batch size is reached or the linger time has passed since its first publish.
+ */
+class RedisPipelinedPublisher {
+
+    private static final Log LOG = LogFactory.getLog(RedisPipelinedPublisher.class);
+
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final JedisPool jedisPool;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final BlockingQueue<PendingPublish> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final ExecutorService flusherExecutor;
+    private volatile boolean running = true;
+
+    RedisPipelinedPublisher(JedisPool jedisPool, int connections, int batchSize, Duration linger) {
+        this.jedisPool = jedisPool;
+        this.batchSize = batchSize;
+        this.lingerNanos = linger.toNanos();
+        this.flusherExecutor = Executors.newFixedThreadPool(connections);
+        for (int i = 0; i < connections; i++) {
+            flusherExecutor.submit(this::flushLoop);
+        }
+    }
+
+    /**
+     * Blocks the caller while {@value #QUEUE_CAPACITY} publishes are already waiting, fails after {@link #close()}.
+     */
+    CompletableFuture<Void> publish(byte[] channel, byte[] message) {
+        if (!running) {
+            return CompletableFuture.failedFuture(closedException());
+        }
+        PendingPublish pending = new PendingPublish(channel, message);
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.future.completeExceptionally(e);
+            return pending.future;
+        }
+        // closed meanwhile: failed here unless a flusher or close() has taken it already
+        if (!running && queue.remove(pending)) {
+            pending.future.completeExceptionally(closedException());
+        }
+        return pending.future;
+    }
+
+    /**
+     * Flushes the pending publishes for a while, the ones still queued afterwards are failed.
+     */
+    void close() {
+        running = false;
+        flusherExecutor.shutdown();
+        try {
+            if (!flusherExecutor.awaitTermination(POLL_TIMEOUT_MILLIS * 10, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Redis pipelined publisher did not stop in time!");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingPublish> unsent = new ArrayList<>();
+        queue.drainTo(unsent);
+        if (!unsent.isEmpty()) {
+            LOG.warn(String.format("Failing %d publish(es) not flushed before closing.", unsent.size()));
+            unsent.forEach(p -> p.future.completeExceptionally(closedException()));
+        }
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("Redis pipelined publisher is closed!");
+    }
+
+    private void flushLoop() {
+        List<PendingPublish> batch = new ArrayList<>(batchSize);
+        Jedis jedis = null;
+        try {
+            // pending publishes are still flushed after close()
+            while (running || !queue.isEmpty()) {
+                if (!collect(batch)) {
+                    continue;
+                }
+                try {
+                    if (jedis == null) {
+                        jedis = jedisPool.getResource();
+                    }
+                    flush(jedis, batch);
+                } catch (JedisException e) {
+                    LOG.error("Could not flush Redis pipeline!", e);
+                    batch.forEach(p -> p.future.completeExceptionally(e));
+                    if (jedis != null) {
+                        jedis.close();
+                        jedis = null;
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+    }
+
+    private boolean collect(List<PendingPublish> batch) throws InterruptedException {
+        PendingPublish first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return false;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= batchSize || remaining <= 0) {
+                break;
+            }
+            PendingPublish next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return true;
+    }
+
+    private void flush(Jedis jedis, List<PendingPublish> batch) {
+        Pipeline pipeline = jedis.pipelined();
+        for (PendingPublish pending : batch) {
+            pipeline.publish(pending.channel, pending.message);
+        }
+        // a single round trip for the whole batch
+        pipeline.sync();
+        batch.forEach(p -> p.future.complete(null));
+    }
+
+    private static class PendingPublish {
+
+        private final byte[] channel;
+        private final byte[] message;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingPublish(byte[] channel, byte[] message) {
+            this.channel = channel;
+            this.message = message;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.paperboy.connector;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends a second attempt of an idempotent request when the first one has not completed within the 95th percentile of
+ * the recent latencies of the same kind of request; the first successful attempt wins. Nothing is hedged before
+ * {@link #MIN_SAMPLES} latencies were recorded. A failed attempt is not retried, the call only fails once all of its
+ * attempts failed.
+ */
+class RequestHedger {
+
+    static final int MIN_SAMPLES = 20;
+    private static final int WINDOW = 256;
+
+    private final ScheduledExecutorService scheduler;
+    private final long minDelayNanos;
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * @param scheduler schedules the second attempts (it only has to call the attempt supplier)
+     * @param minDelay  lower bound of the hedging delay
+     */
+    RequestHedger(ScheduledExecutorService scheduler, Duration minDelay) {
+        this.scheduler = scheduler;
+        this.minDelayNanos = minDelay.toNanos();
+    }
+
+    long hedges() {
+        return hedges.get();
+    }
+
+    <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> attempt) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        long start = System.nanoTime();
+        attempt(attempt, result, pending, start);
+        long delayNanos = hedgeDelayNanos();
+        if (delayNanos > 0 && !result.isDone() && !scheduler.isShutdown()) {
+            ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+                if (!result.isDone() && tryAddAttempt(pending)) {
+                    hedges.incrementAndGet();
+                    attempt(attempt, result, pending, System.nanoTime());
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            result.whenComplete((r, e) -> hedge.cancel(false));
+        }
+        return result;
+    }
+
+    // once the last attempt failed the call is over, so pending never goes from 0 back to 1
+    private static boolean tryAddAttempt(AtomicInteger pending) {
+        int current;
+        do {
+            current = pending.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!pending.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> attempt, CompletableFuture<T> result, AtomicInteger pending, long start) {
+        attempt.get().whenComplete((r, e) -> {
+            if (e == null) {
+                record(System.nanoTime() - start);
+                result.complete(r);
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private synchronized void record(long nanos) {
+        samples[sampleCount++ % WINDOW] = nanos;
+    }
+
+    private long hedgeDelayNanos() {
+        long[] recent;
+        synchronized (this) {
+            if (sampleCount < MIN_SAMPLES) {
+                return 0;
+            }
+            recent = Arrays.copyOf(samples, Math.min(sampleCount, WINDOW));
+        }
+        Arrays.sort(recent);
+        return Math.max(recent[(int) (recent.length * 0.95)], minDelayNanos);
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.paperboy.connector;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the nodes in turn, regardless of their load (the default).
+ */
+public class RoundRobinNodeSelector implements NodeSelector {
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public String select(List<String> nodes) {
+        return nodes.get(Math.floorMod(next.getAndIncrement(), nodes.size()));
+    }
+
+}
@@ -0,0 +1,174 @@
+package com.paperboy.connector;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Collects the entries published to a topic and sends them with a single asynchronous PublishBatch call when either
+ * the batch size, the SNS payload limit or the linger time is reached.
+ */
+class SnsPublishBatcher {
+
+    static final int MAX_BATCH_SIZE = 10;
+    // total payload of a PublishBatch request
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private final AmazonSNSAsync sns;
+    private final int batchSize;
+    private final Duration linger;
+    private final ScheduledExecutorService lingerExecutor;
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    SnsPublishBatcher(AmazonSNSAsync sns, int batchSize, Duration linger) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException(String.format("SNS batch size must be between 1 and %d!", MAX_BATCH_SIZE));
+        }
+        this.sns = sns;
+        this.batchSize = batchSize;
+        this.linger = linger;
+        this.lingerExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    CompletableFuture<Void> add(String topicArn, PublishBatchRequestEntry entry) {
+        return batches.computeIfAbsent(topicArn, Batch::new).add(entry);
+    }
+
+    /**
+     * Sends the collected entries and waits for the PublishBatch calls still running, so the client can be shut down
+     * afterwards. Entries added later are failed.
+     *
+     * @param timeout max time to wait for the calls
+     * @return false when calls were still running after the timeout
+     */
+    boolean close(Duration timeout) {
+        // set first, so an add() taking a batch's lock after its flush below sees it
+        closed = true;
+        batches.values().forEach(Batch::flush);
+        lingerExecutor.shutdown();
+        try {
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture[0])).get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // never thrown, the calls' futures are always completed normally
+            return true;
+        }
+    }
+
+    private static int sizeOf(PublishBatchRequestEntry entry) {
+        int size = entry.getMessage().getBytes(StandardCharsets.UTF_8).length;
+        if (entry.getMessageAttributes() != null) {
+            for (Map.Entry<String, MessageAttributeValue> attribute : entry.getMessageAttributes().entrySet()) {
+                size += attribute.getKey().length() + attribute.getValue().getDataType().length() + attribute.getValue().getStringValue().length();
+            }
+        }
+        return size;
+    }
+
+    private class Batch {
+
+        private final String topicArn;
+        private List<PublishBatchRequestEntry> entries = new ArrayList<>(batchSize);
+        private List<CompletableFuture<Void>> futures = new ArrayList<>(batchSize);
+        private int bytes;
+        private ScheduledFuture<?> lingerTask;
+
+        Batch(String topicArn) {
+            this.topicArn = topicArn;
+        }
+
+        synchronized CompletableFuture<Void> add(PublishBatchRequestEntry entry) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("SNS backend is closed!"));
+            }
+            int size = sizeOf(entry);
+            if (!entries.isEmpty() && bytes + size > MAX_BATCH_BYTES) {
+                send();
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            // entry ids only have to be unique within a request
+            entries.add(entry.withId(Integer.toString(entries.size())));
+            futures.add(future);
+            bytes += size;
+            if (entries.size() >= batchSize) {
+                send();
+            } else if (entries.size() == 1) {
+                lingerTask = lingerExecutor.schedule(this::flush, linger.toMillis(), TimeUnit.MILLISECONDS);
+            }
+            return future;
+        }
+
+        synchronized void flush() {
+            if (!entries.isEmpty()) {
+                send();
+            }
+        }
+
+        private void send() {
+            if (lingerTask != null) {
+                lingerTask.cancel(false);
+                lingerTask = null;
+            }
+            List<CompletableFuture<Void>> batchFutures = futures;
+            PublishBatchRequest request = new PublishBatchRequest().withTopicArn(topicArn).withPublishBatchRequestEntries(entries);
+            entries = new ArrayList<>(batchSize);
+            futures = new ArrayList<>(batchSize);
+            bytes = 0;
+            CompletableFuture<Void> call = new CompletableFuture<>();
+            inFlight.add(call);
+            call.whenComplete((v, e) -> inFlight.remove(call));
+            try {
+                sns.publishBatchAsync(request, new AsyncHandler<PublishBatchRequest, PublishBatchResult>() {
+                    @Override
+                    public void onError(Exception e) {
+                        batchFutures.forEach(f -> f.completeExceptionally(e));
+                        call.complete(null);
+                    }
+
+                    @Override
+                    public void onSuccess(PublishBatchRequest request, PublishBatchResult result) {
+                        for (PublishBatchResultEntry successful : result.getSuccessful()) {
+                            batchFutures.get(Integer.parseInt(successful.getId())).complete(null);
+                        }
+                        for (BatchResultErrorEntry failed : result.getFailed()) {
+                            batchFutures.get(Integer.parseInt(failed.getId())).completeExceptionally(
+                                    new IllegalStateException(String.format("SNS rejected message: %s %s", failed.getCode(), failed.getMessage())));
+                        }
+                        call.complete(null);
+                    }
+                });
+            } catch (RuntimeException e) {
+                batchFutures.forEach(f -> f.completeExceptionally(e));
+                call.complete(null);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.paperboy.connector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Subscriptions authorized by this connector, indexed by channel and by user. With a lease, a subscription expires
+ * unless it is authorized again in time once the lease is enforced, expired ones are purged lazily.
+ */
+class SubscriptionRegistry {
+
+    private final Map<String, Map<Subscription, Long>> byChannel = new ConcurrentHashMap<>();
+    private final Map<String, Map<Subscription, Long>> byUser = new ConcurrentHashMap<>();
+    private volatile long leaseMillis;
+    private volatile boolean leaseEnforced;
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    void setLease(Duration lease) {
+        this.leaseMillis = lease.toMillis();
+    }
+
+    /**
+     * Lets the lease expire subscriptions, until then they are kept while being renewed.
+     *
+     * @return true when the lease was not enforced before
+     */
+    boolean enforceLease() {
+        if (leaseEnforced) {
+            return false;
+        }
+        synchronized (this) {
+            boolean enforced = leaseEnforced;
+            leaseEnforced = true;
+            return !enforced;
+        }
+    }
+
+    void register(String wsId, String userId, String channel) {
+        if (userId == null || channel == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long lease = leaseMillis;
+        long expiresAt = lease > 0 ? now + lease : Long.MAX_VALUE;
+        Subscription subscription = new Subscription(wsId, userId, channel);
+        add(byChannel, channel, subscription, expiresAt);
+        add(byUser, userId, subscription, expiresAt);
+        if (lease > 0 && leaseEnforced && now - lastPurge > lease) {
+            lastPurge = now;
+            purgeExpired(now);
+        }
+    }
+
+    /**
+     * @param userId  user whose subscriptions are removed, null for all users
+     * @param channel channel whose subscriptions are removed, null for all channels
+     */
+    void unregister(String userId, String channel) {
+        if (channel != null) {
+            for (Subscription s : remove(byChannel, channel, s -> userId == null || userId.equals(s.userId))) {
+                remove(byUser, s.userId, s::equals);
+            }
+        } else if (userId != null) {
+            for (Subscription s : remove(byUser, userId, s -> true)) {
+                remove(byChannel, s.channel, s::equals);
+            }
+        } else {
+            byChannel.clear();
+            byUser.clear();
+        }
+    }
+
+    boolean hasChannelSubscribers(String channel) {
+        return channel != null && hasSubscribers(byChannel, channel);
+    }
+
+    boolean hasUserSubscribers(String userId) {
+        return userId != null && hasSubscribers(byUser, userId);
+    }
+
+    int channelCount() {
+        return byChannel.size();
+    }
+
+    int userCount() {
+        return byUser.size();
+    }
+
+    private static void add(Map<String, Map<Subscription, Long>> index, String key, Subscription subscription, long expiresAt) {
+        index.compute(key, (k, subscriptions) -> {
+            if (subscriptions == null) {
+                subscriptions = new ConcurrentHashMap<>();
+            }
+            subscriptions.put(subscription, expiresAt);
+            return subscriptions;
+        });
+    }
+
+    // the index entry is dropped atomically with its last subscription, so a concurrent add is never lost
+    private static List<Subscription> remove(Map<String, Map<Subscription, Long>> index, String key, Predicate<Subscription> predicate) {
+        List<Subscription> removed = new ArrayList<>();
+        index.computeIfPresent(key, (k, subscriptions) -> {
+            subscriptions.keySet().removeIf(s -> {
+                if (predicate.test(s)) {
+                    removed.add(s);
+                    return true;
+                }
+                return false;
+            });
+            return subscriptions.isEmpty() ? null : subscriptions;
+        });
+        return removed.isEmpty() ? Collections.emptyList() : removed;
+    }
+
+    private boolean hasSubscribers(Map<String, Map<Subscription, Long>> index, String key) {
+        Map<Subscription, Long> subscriptions = index.get(key);
+        if (subscriptions == null) {
+            return false;
+        }
+        if (!subscriptions.isEmpty() && !leaseEnforced) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        for (Long expiresAt : subscriptions.values()) {
+            if (expiresAt > now) {
+                return true;
+            }
+        }
+        remove(index, key, s -> {
+            Long expiresAt = subscriptions.get(s);
+            return expiresAt != null && expiresAt <= now;
+        });
+        return false;
+    }
+
+    private void purgeExpired(long now) {
+        for (Map<String, Map<Subscription, Long>> index : List.of(byChannel, byUser)) {
+            for (String key : index.keySet()) {
+                index.computeIfPresent(key, (k, subscriptions) -> {
+                    subscriptions.values().removeIf(expiresAt -> expiresAt <= now);
+                    return subscriptions.isEmpty() ? null : subscriptions;
+                });
+            }
+        }
+    }
+
+    private static class Subscription {
+
+        private final String wsId;
+        private final String userId;
+        private final String channel;
+
+        Subscription(String wsId, String userId, String channel) {
+            this.wsId = wsId;
+            this.userId = userId;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Subscription that = (Subscription) o;
+            return Objects.equals(wsId, that.wsId) && userId.equals(that.userId) && channel.equals(that.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(wsId, userId, channel);
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.paperboy.connector;
+
+import org.apache.commons.logging.Log;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replaces per-message INFO lines with a summary per topic, logged at most once per interval. Recording only
+ * increments a counter, so it does not allocate once the topic has been seen.
+ */
+class TopicActivityLog {
+
+    private final Log log;
+    private final String activity;
+    private final long intervalMillis;
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final AtomicLong nextSummaryAt;
+    private volatile long lastSummaryAt;
+
+    /**
+     * @param log      log the summaries are written to (at INFO level)
+     * @param activity what is counted, e.g. "Published"
+     * @param interval min time between summaries, zero disables them
+     */
+    TopicActivityLog(Log log, String activity, Duration interval) {
+        this.log = log;
+        this.activity = activity;
+        this.intervalMillis = interval.toMillis();
+        this.lastSummaryAt = System.currentTimeMillis();
+        this.nextSummaryAt = new AtomicLong(lastSummaryAt + intervalMillis);
+    }
+
+    void record(String topic) {
+        if (intervalMillis <= 0 || !log.isInfoEnabled()) {
+            return;
+        }
+        LongAdder counter = counters.get(topic);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(topic, k -> new LongAdder());
+        }
+        counter.increment();
+        long now = System.currentTimeMillis();
+        long next = nextSummaryAt.get();
+        // a single caller wins the interval and writes the summary
+        if (now >= next && nextSummaryAt.compareAndSet(next, now + intervalMillis)) {
+            logSummary(now);
+        }
+    }
+
+    private void logSummary(long now) {
+        long seconds = Math.max((now - lastSummaryAt) / 1000, 1);
+        lastSummaryAt = now;
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            long count = entry.getValue().sumThenReset();
+            if (count > 0) {
+                log.info(String.format("%s %d message(s) on topic '%s' in the last %d s.", activity, count, entry.getKey(), seconds));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.paperboy.connector;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.sns.AmazonSNSAsync;
+import com.amazonaws.services.sns.AmazonSNSAsyncClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AmazonSnsBackendTest {
+
+    private RecordingSnsEndpoint endpoint;
+    private AmazonSNSAsync sns;
+    private AmazonSQS sqs;
+    private AmazonSnsBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        endpoint = new RecordingSnsEndpoint();
+        AwsClientBuilder.EndpointConfiguration configuration = new AwsClientBuilder.EndpointConfiguration(endpoint.url(), "us-east-1");
+        AWSStaticCredentialsProvider credentials = new AWSStaticCredentialsProvider(new BasicAWSCredentials("test", "test"));
+        sns = AmazonSNSAsyncClientBuilder.standard().withEndpointConfiguration(configuration).withCredentials(credentials).build();
+        sqs = AmazonSQSClientBuilder.standard().withEndpointConfiguration(configuration).withCredentials(credentials).build();
+        backend = new AmazonSnsBackend(sns, sqs);
+        backend.setPublishLinger(Duration.ofMillis(50));
+        backend.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+        sns.shutdown();
+        sqs.shutdown();
+        endpoint.close();
+    }
+
+    @Test
+    void publishWaitsForBatchAndThrowsItsFailure() {
+        backend.publish("paperboy-message", message("accepted"));
+        // the batch has been sent, not only queued
+        assertEquals(1, endpoint.published.size());
+        assertTrue(endpoint.published.get(0).contains("accepted"));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> backend.publish("paperboy-message", message("rejected")));
+        assertTrue(e.getMessage().contains("InternalError"));
+    }
+
+    @Test
+    void publishesMessagesOfTopicInBatches() {
+        List<CompletableFuture<Void>> published = IntStream.range(0, 10)
+                .mapToObj(i -> backend.publishAsync("paperboy-message", message("message-" + i)))
+                .collect(Collectors.toList());
+        CompletableFuture.allOf(published.toArray(new CompletableFuture[0])).join();
+
+        assertEquals(List.of(10), endpoint.batchSizes);
+        assertEquals(IntStream.range(0, 10).mapToObj(i -> "message-" + i).collect(Collectors.toList()), endpoint.published.stream()
+                .map(message -> message.replaceAll(".*\"text\":\"([^\"]*)\".*", "$1"))
+                .collect(Collectors.toList()));
+    }
+
+    private static Message message(String text) {
+        return new Message(null, "channel-1", new OutboxMessagingBackendTest.TextPayload(text));
+    }
+
+    /**
+     * In-process stand-in of the SNS query API, answering CreateTopic and PublishBatch. Entries whose message contains
+     * "rejected" are failed by SNS.
+     */
+    private static class RecordingSnsEndpoint implements AutoCloseable {
+
+        private final HttpServer server;
+        private final List<String> published = new CopyOnWriteArrayList<>();
+        private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+        RecordingSnsEndpoint() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/", this::handle);
+            server.start();
+        }
+
+        private void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> parameters = new HashMap<>();
+            try (InputStream in = exchange.getRequestBody()) {
+                for (String parameter : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("&")) {
+                    String[] nameValue = parameter.split("=", 2);
+                    parameters.put(URLDecoder.decode(nameValue[0], StandardCharsets.UTF_8),
+                            nameValue.length > 1 ? URLDecoder.decode(nameValue[1], StandardCharsets.UTF_8) : "");
+                }
+            }
+            String action = parameters.get("Action");
+            String response;
+            if ("CreateTopic".equals(action)) {
+                response = "<CreateTopicResponse><CreateTopicResult><TopicArn>arn:aws:sns:us-east-1:000000000000:" + parameters.get("Name")
+                        + "</TopicArn></CreateTopicResult></CreateTopicResponse>";
+            } else if ("PublishBatch".equals(action)) {
+                response = publishBatch(parameters);
+            } else {
+                exchange.sendResponseHeaders(400, -1);
+                exchange.close();
+                return;
+            }
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/xml");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+
+        private String publishBatch(Map<String, String> parameters) {
+            List<String> successful = new ArrayList<>();
+            List<String> failed = new ArrayList<>();
+            int size = 0;
+            for (int i = 1; parameters.containsKey("PublishBatchRequestEntries.member." + i + ".Id"); i++) {
+                String id = parameters.get("PublishBatchRequestEntries.member." + i + ".Id");
+                String message = parameters.get("PublishBatchRequestEntries.member." + i + ".Message");
+                size++;
+                if (message.contains("rejected")) {
+                    failed.add("<member><Id>" + id + "</Id><Code>InternalError</Code><Message>down</Message><SenderFault>false</SenderFault></member>");
+                } else {
+                    published.add(message);
+                    successful.add("<member><Id>" + id + "</Id><MessageId>" + id + "</MessageId></member>");
+                }
+            }
+            batchSizes.add(size);
+            return "<PublishBatchResponse><PublishBatchResult><Successful>" + String.join("", successful) + "</Successful><Failed>"
+                    + String.join("", failed) + "</Failed></PublishBatchResult></PublishBatchResponse>";
+        }
+
+        String url() {
+            return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
+}
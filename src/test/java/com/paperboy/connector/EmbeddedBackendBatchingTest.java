@@ -0,0 +1,150 @@
+package com.paperboy.connector;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmbeddedBackendBatchingTest {
+
+    private static final int BATCH_SIZE = 50;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private RecordingPaperboyNode node;
+    private EmbeddedBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        node = new RecordingPaperboyNode();
+        backend = new EmbeddedBackend("token");
+        backend.setBatchingEnabled(true);
+        backend.setBatchSize(BATCH_SIZE);
+        backend.setBatchLinger(Duration.ofMillis(5));
+        backend.setKeepAliveInterval(Duration.ZERO);
+        backend.initWithServices(List.of(node.url()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (backend != null) {
+            backend.close();
+        }
+        node.close();
+    }
+
+    @Test
+    void keepsOrderWithinAndAcrossBatches() throws Exception {
+        List<CompletableFuture<Void>> published = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            published.add(backend.publishAsync("topic", Map.of("seq", i)));
+        }
+        awaitAll(published);
+
+        List<RecordingPaperboyNode.Request> batches = node.requests("/pushMessages/topic");
+        assertTrue(batches.size() < 1000, "messages were not batched");
+        assertTrue(node.requests("/pushMessage/").isEmpty());
+        List<Integer> received = new ArrayList<>();
+        for (RecordingPaperboyNode.Request batch : batches) {
+            List<Integer> sequence = sequenceOf(batch);
+            assertTrue(sequence.size() <= BATCH_SIZE);
+            received.addAll(sequence);
+        }
+        assertEquals(IntStream.range(0, 1000).boxed().collect(Collectors.toList()), received);
+    }
+
+    @Test
+    void batchesTopicsSeparately() throws Exception {
+        List<CompletableFuture<Void>> published = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            published.add(backend.publishAsync(i % 2 == 0 ? "even" : "odd", Map.of("seq", i)));
+        }
+        awaitAll(published);
+
+        assertEquals(IntStream.range(0, 300).filter(i -> i % 2 == 0).boxed().collect(Collectors.toList()), received("/pushMessages/even"));
+        assertEquals(IntStream.range(0, 300).filter(i -> i % 2 == 1).boxed().collect(Collectors.toList()), received("/pushMessages/odd"));
+    }
+
+    @Test
+    void keepsOrderOfEachPublisher() throws Exception {
+        int publishers = 4;
+        int messages = 250;
+        ExecutorService executor = Executors.newFixedThreadPool(publishers);
+        try {
+            List<CompletableFuture<Void>> published = new ArrayList<>();
+            List<CompletableFuture<Void>> publishing = new ArrayList<>();
+            for (int p = 0; p < publishers; p++) {
+                int publisher = p;
+                publishing.add(CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < messages; i++) {
+                        CompletableFuture<Void> future = backend.publishAsync("topic", Map.of("seq", publisher * messages + i));
+                        synchronized (published) {
+                            published.add(future);
+                        }
+                    }
+                }, executor));
+            }
+            awaitAll(publishing);
+            awaitAll(published);
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<Integer, List<Integer>> byPublisher = new HashMap<>();
+        for (int seq : received("/pushMessages/topic")) {
+            byPublisher.computeIfAbsent(seq / messages, k -> new ArrayList<>()).add(seq);
+        }
+        assertEquals(publishers, byPublisher.size());
+        byPublisher.forEach((publisher, sequence) -> assertEquals(
+                IntStream.range(publisher * messages, (publisher + 1) * messages).boxed().collect(Collectors.toList()), sequence));
+    }
+
+    @Test
+    void failsPublishesAfterClose() {
+        backend.close();
+        CompletableFuture<Void> published = backend.publishAsync("topic", Map.of("seq", 0));
+        backend = null;
+
+        assertThrows(ExecutionException.class, () -> published.get(5, TimeUnit.SECONDS));
+        assertTrue(node.requests("/pushMessages/").isEmpty());
+    }
+
+    private List<Integer> received(String path) throws IOException {
+        List<Integer> received = new ArrayList<>();
+        for (RecordingPaperboyNode.Request batch : node.requests(path)) {
+            received.addAll(sequenceOf(batch));
+        }
+        return received;
+    }
+
+    private List<Integer> sequenceOf(RecordingPaperboyNode.Request batch) throws IOException {
+        JsonNode messages = objectMapper.readTree(batch.body);
+        assertTrue(messages.isArray(), "batch is not a JSON array");
+        List<Integer> sequence = new ArrayList<>(messages.size());
+        messages.forEach(message -> sequence.add(message.get("seq").asInt()));
+        return sequence;
+    }
+
+    private static void awaitAll(List<CompletableFuture<Void>> futures) throws Exception {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.paperboy.connector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmbeddedBackendSubscriptionTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private RecordingPaperboyNode fastNode;
+    private RecordingPaperboyNode slowNode;
+    private EmbeddedBackend backend;
+
+    @AfterEach
+    void tearDown() {
+        if (backend != null) {
+            backend.close();
+        }
+        if (fastNode != null) {
+            fastNode.close();
+        }
+        if (slowNode != null) {
+            slowNode.close();
+        }
+    }
+
+    @Test
+    void leastOutstandingSteersSubscriptionsAwayFromSlowNode() throws Exception {
+        fastNode = new RecordingPaperboyNode();
+        slowNode = new RecordingPaperboyNode();
+        backend = backendOf(List.of(slowNode.url(), fastNode.url()), Duration.ofSeconds(30));
+        AtomicInteger outstanding = new AtomicInteger();
+        backend.setNodeSelector(new LeastOutstandingNodeSelector() {
+            @Override
+            public void requestStarted(String node) {
+                outstanding.incrementAndGet();
+                super.requestStarted(node);
+            }
+
+            @Override
+            public void requestCompleted(String node, long durationNanos, boolean success) {
+                super.requestCompleted(node, durationNanos, success);
+                outstanding.decrementAndGet();
+            }
+        });
+        backend.init();
+        // connections are opened and warmed up on both nodes while they are equally fast
+        List<String> warmUpQueues = queues("warm-up-", 10);
+        listen(warmUpQueues, Duration.ZERO);
+        await(() -> subscribed(fastNode, "warm-up-").size() + subscribed(slowNode, "warm-up-").size() == warmUpQueues.size()
+                && outstanding.get() == 0);
+
+        slowNode.setLatency(Duration.ofMillis(500));
+        List<String> queues = queues("queue-", 20);
+        listen(queues, Duration.ofMillis(20));
+        await(() -> subscribed(fastNode, "queue-").size() + subscribed(slowNode, "queue-").size() == queues.size());
+
+        assertTrue(subscribed(slowNode, "queue-").size() <= 2, "slow node got subscriptions " + subscribed(slowNode, "queue-"));
+        assertEquals(Set.copyOf(queues), union(subscribed(fastNode, "queue-"), subscribed(slowNode, "queue-")));
+    }
+
+    @Test
+    void movesSubscriptionsOfFailedNode() throws Exception {
+        fastNode = new RecordingPaperboyNode();
+        slowNode = new RecordingPaperboyNode(Duration.ofMillis(20));
+        backend = backendOf(List.of(fastNode.url(), slowNode.url()), Duration.ofMillis(100));
+        backend.init();
+
+        List<String> queues = queues("queue-", 10);
+        listen(queues, Duration.ZERO);
+        await(() -> subscribed(fastNode, "queue-").size() + subscribed(slowNode, "queue-").size() == queues.size());
+        assertTrue(!subscribed(fastNode, "queue-").isEmpty() && !subscribed(slowNode, "queue-").isEmpty(), "queues were not spread over the nodes");
+
+        fastNode.close();
+        fastNode = null;
+        await(() -> subscribed(slowNode, "queue-").size() == queues.size());
+
+        assertEquals(Set.copyOf(queues), subscribed(slowNode, "queue-"));
+    }
+
+    private static EmbeddedBackend backendOf(List<String> services, Duration healthCheckInterval) {
+        EmbeddedBackend backend = new EmbeddedBackend("token");
+        backend.setDiscoveryEnabled(false);
+        backend.setSeedServices(services);
+        backend.setCallbackAddress("127.0.0.1");
+        backend.setKeepAliveInterval(Duration.ZERO);
+        backend.setRequestTimeout(Duration.ofSeconds(2));
+        backend.setHealthCheckInterval(healthCheckInterval);
+        return backend;
+    }
+
+    private void listen(List<String> queues, Duration spacing) throws InterruptedException {
+        for (String queue : queues) {
+            backend.listen(queue, (topic, message) -> {
+            });
+            Thread.sleep(spacing.toMillis());
+        }
+    }
+
+    private static List<String> queues(String prefix, int count) {
+        return IntStream.range(0, count).mapToObj(i -> prefix + i).collect(Collectors.toList());
+    }
+
+    private static Set<String> subscribed(RecordingPaperboyNode node, String queuePrefix) {
+        return node.requests("/subscribeTopic/" + queuePrefix).stream()
+                .map(request -> request.path.substring("/subscribeTopic/".length()))
+                .collect(Collectors.toSet());
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> union = new HashSet<>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+}
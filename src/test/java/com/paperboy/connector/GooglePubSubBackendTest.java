@@ -0,0 +1,187 @@
+package com.paperboy.connector;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.StreamingPullRequest;
+import com.google.pubsub.v1.StreamingPullResponse;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GooglePubSubBackendTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final String TOPIC = "projects/test/topics/paperboy-message";
+    private static final String QUEUE = "projects/test/subscriptions/paperboy-subscription-request";
+
+    private FakePubSubServer server;
+    private ManagedChannel channel;
+    private GooglePubSubBackend backend;
+    private boolean backendClosed;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        String name = UUID.randomUUID().toString();
+        server = new FakePubSubServer(name);
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        backend = new GooglePubSubBackend();
+        backend.setChannelProvider(FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)));
+        backend.setCredentialsProvider(NoCredentialsProvider.create());
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (!backendClosed) {
+            backend.close();
+        }
+        channel.shutdownNow().awaitTermination(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        server.close();
+    }
+
+    @Test
+    void publishesInConfiguredBatchesAndFlushesOnClose() throws Exception {
+        backend.setBatchElementCount(3);
+        backend.setBatchRequestBytes(1024 * 1024);
+        backend.setBatchDelay(Duration.ofSeconds(30));
+        backend.init();
+
+        IntStream.range(0, 4).forEach(i -> backend.publishAsync(TOPIC, "message-" + i));
+        // the element count completes a batch, the delay would hold the rest for much longer than the test
+        await(() -> server.publishRequests.size() == 1);
+        assertEquals(3, server.publishRequests.get(0).getMessagesCount());
+        Thread.sleep(200);
+        assertEquals(1, server.publishRequests.size());
+
+        backend.close();
+        backendClosed = true;
+        assertEquals(List.of(3, 1), server.publishRequests.stream().map(PublishRequest::getMessagesCount).collect(Collectors.toList()));
+        assertEquals(TOPIC, server.publishRequests.get(1).getTopic());
+        assertEquals("\"message-3\"", server.publishRequests.get(1).getMessages(0).getData().toStringUtf8());
+    }
+
+    @Test
+    void pullsWithConfiguredFlowControl() throws Exception {
+        backend.setMaxOutstandingElementCount(7);
+        backend.setMaxOutstandingRequestBytes(4096);
+        backend.setParallelPullCount(2);
+        backend.init();
+
+        backend.listen(QUEUE, (topic, message) -> {
+        });
+
+        await(() -> server.streamingPulls.size() == 2);
+        for (StreamingPullRequest request : server.streamingPulls) {
+            assertEquals(QUEUE + "-sub-connector", request.getSubscription());
+            assertEquals(7, request.getMaxOutstandingMessages());
+            assertEquals(4096, request.getMaxOutstandingBytes());
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * In-process stand-in of the Pub/Sub gRPC service: it records the Publish requests and the initial requests of the
+     * streaming pulls, which are kept open without delivering messages.
+     */
+    private static class FakePubSubServer implements AutoCloseable {
+
+        private static final MethodDescriptor<PublishRequest, PublishResponse> PUBLISH = MethodDescriptor.<PublishRequest, PublishResponse>newBuilder()
+                .setType(MethodDescriptor.MethodType.UNARY)
+                .setFullMethodName("google.pubsub.v1.Publisher/Publish")
+                .setRequestMarshaller(ProtoUtils.marshaller(PublishRequest.getDefaultInstance()))
+                .setResponseMarshaller(ProtoUtils.marshaller(PublishResponse.getDefaultInstance()))
+                .build();
+        private static final MethodDescriptor<StreamingPullRequest, StreamingPullResponse> STREAMING_PULL = MethodDescriptor.<StreamingPullRequest, StreamingPullResponse>newBuilder()
+                .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+                .setFullMethodName("google.pubsub.v1.Subscriber/StreamingPull")
+                .setRequestMarshaller(ProtoUtils.marshaller(StreamingPullRequest.getDefaultInstance()))
+                .setResponseMarshaller(ProtoUtils.marshaller(StreamingPullResponse.getDefaultInstance()))
+                .build();
+
+        private final Server server;
+        private final List<PublishRequest> publishRequests = new CopyOnWriteArrayList<>();
+        private final List<StreamingPullRequest> streamingPulls = new CopyOnWriteArrayList<>();
+
+        FakePubSubServer(String name) throws IOException {
+            server = InProcessServerBuilder.forName(name).directExecutor()
+                    .addService(ServerServiceDefinition.builder("google.pubsub.v1.Publisher")
+                            .addMethod(PUBLISH, ServerCalls.asyncUnaryCall(this::publish))
+                            .build())
+                    .addService(ServerServiceDefinition.builder("google.pubsub.v1.Subscriber")
+                            .addMethod(STREAMING_PULL, ServerCalls.asyncBidiStreamingCall(this::streamingPull))
+                            .build())
+                    .build()
+                    .start();
+        }
+
+        private void publish(PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+            publishRequests.add(request);
+            PublishResponse.Builder response = PublishResponse.newBuilder();
+            for (int i = 0; i < request.getMessagesCount(); i++) {
+                response.addMessageIds(request.getTopic() + "-" + publishRequests.size() + "-" + i);
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        private StreamObserver<StreamingPullRequest> streamingPull(StreamObserver<StreamingPullResponse> responseObserver) {
+            return new StreamObserver<>() {
+                private boolean first = true;
+
+                @Override
+                public void onNext(StreamingPullRequest request) {
+                    if (first) {
+                        first = false;
+                        streamingPulls.add(request);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            server.shutdownNow().awaitTermination(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.paperboy.connector;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KafkaBackendTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final String QUEUE = "paperboy-subscription-request";
+    private static final TopicPartition PARTITION_0 = new TopicPartition(QUEUE, 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition(QUEUE, 1);
+
+    private final MockProducer<String, byte[]> producer = new MockProducer<>(false, new StringSerializer(), new ByteArraySerializer());
+    private final MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    private final KafkaBackend backend = new KafkaBackend(JsonMessageCodec.shared(), () -> producer, () -> consumer);
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+    }
+
+    @Test
+    void publishWaitsForAckAndThrowsItsFailure() throws Exception {
+        backend.init();
+
+        CompletableFuture<Void> acked = CompletableFuture.runAsync(() -> backend.publish("paperboy-message", message("channel-1", "first")));
+        await(() -> producer.history().size() == 1);
+        Thread.sleep(100);
+        assertFalse(acked.isDone(), "publish returned before the ack");
+        producer.completeNext();
+        acked.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        ProducerRecord<String, byte[]> record = producer.history().get(0);
+        assertEquals("channel-1", record.key());
+        assertEquals("application/json", new String(record.headers().lastHeader("content-type").value(), StandardCharsets.UTF_8));
+
+        CompletableFuture<Void> failed = CompletableFuture.runAsync(() -> backend.publish("paperboy-message", message("channel-1", "second")));
+        await(() -> producer.history().size() == 2);
+        producer.errorNext(new KafkaException("Broker is down!"));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        assertTrue(e.getCause() instanceof KafkaException, e.getCause().toString());
+    }
+
+    @Test
+    void publishesEncodedMessageAsItIs() throws Exception {
+        backend.init();
+        byte[] encoded = JsonMessageCodec.shared().encode(message("channel-1", "replayed"));
+
+        CompletableFuture<Void> acked = backend.publishAsync("paperboy-message", new EncodedMessage(encoded, "channel-1"));
+        producer.completeNext();
+        acked.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        ProducerRecord<String, byte[]> record = producer.history().get(0);
+        assertEquals("channel-1", record.key());
+        assertArrayEquals(encoded, record.value());
+    }
+
+    @Test
+    void handlesPartitionsInParallelAndEachInOrder() throws Exception {
+        backend.setPartitionWorkers(2);
+        backend.init();
+        assign(records(PARTITION_0, 5), records(PARTITION_1, 5));
+        List<String> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch partition1Done = new CountDownLatch(1);
+        backend.listen(QUEUE, (topic, message) -> {
+            if (message.startsWith("0-")) {
+                // only returns when the other partition has been handled concurrently
+                try {
+                    assertTrue(partition1Done.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                handled.add(message);
+            } else {
+                handled.add(message);
+                if (message.equals("1-4")) {
+                    partition1Done.countDown();
+                }
+            }
+        });
+
+        await(() -> handled.size() == 10);
+        assertEquals(messages(0, 5), handled.stream().filter(m -> m.startsWith("0-")).collect(Collectors.toList()));
+        assertEquals(messages(1, 5), handled.stream().filter(m -> m.startsWith("1-")).collect(Collectors.toList()));
+        // partition 1 was done while partition 0 waited for it
+        assertTrue(handled.indexOf("1-4") < handled.indexOf("0-0"));
+    }
+
+    @Test
+    void commitsOffsetsOnlyAfterHandlerReturned() throws Exception {
+        backend.init();
+        assign(records(PARTITION_0, 3));
+        CountDownLatch handling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        backend.listen(QUEUE, (topic, message) -> {
+            handling.countDown();
+            try {
+                release.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertTrue(handling.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+        Thread.sleep(100);
+        assertNull(committed(PARTITION_0));
+
+        release.countDown();
+        await(() -> committed(PARTITION_0) != null);
+        assertEquals(3, committed(PARTITION_0).offset());
+    }
+
+    @SafeVarargs
+    private void assign(List<ConsumerRecord<String, byte[]>>... partitionRecords) {
+        // run by the poll loop once it has subscribed
+        consumer.schedulePollTask(() -> {
+            List<TopicPartition> partitions = List.of(PARTITION_0, PARTITION_1);
+            consumer.rebalance(partitions);
+            consumer.updateBeginningOffsets(partitions.stream().collect(Collectors.toMap(p -> p, p -> 0L)));
+            for (List<ConsumerRecord<String, byte[]>> records : partitionRecords) {
+                records.forEach(consumer::addRecord);
+            }
+        });
+    }
+
+    private OffsetAndMetadata committed(TopicPartition partition) {
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(Set.of(partition));
+        return committed.get(partition);
+    }
+
+    private static List<ConsumerRecord<String, byte[]>> records(TopicPartition partition, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new ConsumerRecord<>(QUEUE, partition.partition(), i, "ws-" + partition.partition(),
+                        (partition.partition() + "-" + i).getBytes(StandardCharsets.UTF_8)))
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> messages(int partition, int count) {
+        return IntStream.range(0, count).mapToObj(i -> partition + "-" + i).collect(Collectors.toList());
+    }
+
+    private static Message message(String channel, String text) {
+        return new Message(null, channel, new OutboxMessagingBackendTest.TextPayload(text));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.paperboy.connector;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedOutboxTest {
+
+    // header (8) + timestamp (8) + topic length (2) + "t" + key length (2) + "k" + 20 bytes message
+    private static final int RECORD_LENGTH = 42;
+    // three records and the end mark fit, a fourth one starts the next segment
+    private static final int SEGMENT_SIZE = 3 * RECORD_LENGTH + 4 + 10;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void dropsRecordTornAtSegmentEnd() throws IOException {
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            for (int i = 0; i < 3; i++) {
+                outbox.append("t", "k", i, message(i));
+            }
+        }
+        // the last byte of the third record, which ends close to the segment end, never made it
+        corrupt(directory.resolve(String.format("%020d.segment", 0)), 3 * RECORD_LENGTH - 1);
+
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            assertEquals(List.of(0, 1), sequence(outbox.read(10)));
+            // appending continues where the torn record started
+            outbox.append("t", "k", 3, message(3));
+            assertEquals(List.of(0, 1, 3), sequence(outbox.read(10)));
+            assertEquals(1, outbox.segmentCount());
+        }
+    }
+
+    @Test
+    void readsFromStartWhenCheckpointIsTorn() throws IOException {
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            for (int i = 0; i < 3; i++) {
+                outbox.append("t", "k", i, message(i));
+            }
+            outbox.commit(outbox.read(2).get(1).next);
+        }
+        // only the position was written, not its check value
+        corrupt(directory.resolve("outbox.checkpoint"), 8);
+
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            // delivered again rather than lost
+            assertEquals(List.of(0, 1, 2), sequence(outbox.read(10)));
+        }
+    }
+
+    @Test
+    void resumesAcrossSegmentRollAfterRestart() throws IOException {
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            for (int i = 0; i < 5; i++) {
+                outbox.append("t", "k", i, message(i));
+            }
+            assertEquals(2, outbox.segmentCount());
+            outbox.commit(outbox.read(2).get(1).next);
+        }
+
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            assertEquals(2, outbox.segmentCount());
+            outbox.append("t", "k", 5, message(5));
+            List<MappedOutbox.Entry> entries = outbox.read(10);
+            assertEquals(List.of(2, 3, 4, 5), sequence(entries));
+            outbox.commit(entries.get(entries.size() - 1).next);
+            assertTrue(outbox.isEmpty());
+            // the first segment was read completely
+            assertEquals(1, outbox.segmentCount());
+        }
+    }
+
+    @Test
+    void resumesReplayFromCheckpoint() throws IOException {
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            outbox.append("t", "k", 0, message(0));
+            outbox.append("t", null, 1, message(1));
+            outbox.append("t", "k", 2, message(2));
+            outbox.commit(outbox.read(1).get(0).next);
+        }
+
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 4)) {
+            List<MappedOutbox.Entry> entries = outbox.read(10);
+            assertEquals(List.of(1, 2), sequence(entries));
+            assertNull(entries.get(0).key);
+            assertEquals("k", entries.get(1).key);
+            assertEquals(2, entries.get(1).timestamp);
+        }
+    }
+
+    @Test
+    void failsAppendsWhenFull() throws IOException {
+        try (MappedOutbox outbox = MappedOutbox.open(directory, SEGMENT_SIZE, 2)) {
+            for (int i = 0; i < 6; i++) {
+                outbox.append("t", "k", i, message(i));
+            }
+            assertThrows(IllegalStateException.class, () -> outbox.append("t", "k", 6, message(6)));
+
+            // space is given back once the first segment was read
+            List<MappedOutbox.Entry> entries = outbox.read(4);
+            outbox.commit(entries.get(3).next);
+            outbox.append("t", "k", 6, message(6));
+            assertEquals(List.of(4, 5, 6), sequence(outbox.read(10)));
+        }
+    }
+
+    private static byte[] message(int sequence) {
+        return String.format("message-%012d", sequence).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Integer> sequence(List<MappedOutbox.Entry> entries) {
+        return entries.stream()
+                .map(entry -> Integer.parseInt(new String(entry.message, StandardCharsets.UTF_8).substring("message-".length())))
+                .collect(Collectors.toList());
+    }
+
+    private static void corrupt(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) ~b.get(0)}), position);
+        }
+    }
+
+}
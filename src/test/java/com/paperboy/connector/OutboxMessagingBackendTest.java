@@ -0,0 +1,186 @@
+package com.paperboy.connector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxMessagingBackendTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    Path directory;
+
+    private final List<OutboxMessagingBackend> backends = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        backends.forEach(OutboxMessagingBackend::close);
+    }
+
+    @Test
+    void replaysStoredMessagesWithTheirKeyAfterRestart() throws Exception {
+        StubBackend down = new StubBackend();
+        down.failing = true;
+        OutboxMessagingBackend outbox = outbox(down);
+        outbox.publishAsync("paperboy-message", message("channel-1", "first")).get();
+        outbox.publishAsync("paperboy-message", message("channel-2", "second")).get();
+        assertTrue(outbox.hasPendingMessages());
+        outbox.close();
+        backends.remove(outbox);
+
+        StubBackend up = new StubBackend();
+        OutboxMessagingBackend restarted = outbox(up);
+        await(() -> !restarted.hasPendingMessages());
+
+        assertEquals(List.of("channel-1", "channel-2"), up.published.stream()
+                .map(msg -> ((EncodedMessage) msg).getKey())
+                .collect(Collectors.toList()));
+        assertTrue(new String(((EncodedMessage) up.published.get(0)).getBytes()).contains("\"first\""));
+    }
+
+    @Test
+    void keepsOrderOfKeyWhenEarlierPublishFails() throws Exception {
+        StubBackend delegate = new StubBackend();
+        delegate.holding = true;
+        OutboxMessagingBackend outbox = outbox(delegate);
+
+        CompletableFuture<Void> first = outbox.publishAsync("paperboy-message", message("channel-1", "first"));
+        CompletableFuture<Void> second = outbox.publishAsync("paperboy-message", message("channel-1", "second"));
+        CompletableFuture<Void> other = outbox.publishAsync("paperboy-message", message("channel-2", "other"));
+        // the messages of a channel are handed over without waiting for each other, so the backend can batch them
+        assertEquals(3, delegate.held.size());
+
+        // the backend goes down, so the replayer cannot send the stored messages yet
+        delegate.holding = false;
+        delegate.failing = true;
+        delegate.held.get(1).complete(null);
+        delegate.held.get(2).complete(null);
+        other.get();
+        // accepted, but not resolved before the first one of its channel
+        assertFalse(second.isDone());
+        delegate.held.get(0).completeExceptionally(new IllegalStateException("Backend is down!"));
+        first.get();
+        second.get();
+        // stored behind the failed one, so the channel ends with it after the replay
+        assertEquals(3, delegate.held.size());
+        assertTrue(outbox.hasPendingMessages());
+
+        delegate.failing = false;
+        await(() -> !outbox.hasPendingMessages());
+        assertEquals(2, delegate.published.size());
+        assertTrue(new String(((EncodedMessage) delegate.published.get(0)).getBytes()).contains("\"first\""));
+        assertTrue(new String(((EncodedMessage) delegate.published.get(1)).getBytes()).contains("\"second\""));
+    }
+
+    @Test
+    void replaysKeysInOrderWhenMessageInTheMiddleFails() throws Exception {
+        StubBackend delegate = new StubBackend();
+        delegate.failing = true;
+        OutboxMessagingBackend outbox = outbox(delegate);
+        for (String text : List.of("a1", "b1", "a2", "b2", "a3")) {
+            outbox.publishAsync("paperboy-message", message(text.substring(0, 1), text)).get();
+        }
+
+        // the batch is replayed while the third message fails once
+        delegate.failOnce = "a2";
+        delegate.failing = false;
+        await(() -> !outbox.hasPendingMessages());
+
+        // b2 is not held up by a2 and not sent twice, a3 waits for a2
+        assertEquals(List.of("a1", "b1", "b2", "a2", "a3"), delegate.published.stream()
+                .map(msg -> ((EncodedMessage) msg).getBytes())
+                .map(bytes -> new String(bytes).replaceAll(".*\"text\":\"([^\"]*)\".*", "$1"))
+                .collect(Collectors.toList()));
+        assertEquals(5, outbox.getReplayedMessages());
+    }
+
+    private OutboxMessagingBackend outbox(MessagingBackend delegate) {
+        OutboxMessagingBackend outbox = new OutboxMessagingBackend(delegate, JsonMessageCodec.shared(), directory);
+        outbox.setSegmentSize(64 * 1024);
+        outbox.setReplayInterval(Duration.ofMillis(10));
+        outbox.init();
+        backends.add(outbox);
+        return outbox;
+    }
+
+    private static Message message(String channel, String text) {
+        return new Message(null, channel, new TextPayload(text));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+    public static class TextPayload implements Payload {
+
+        public final String text;
+
+        TextPayload(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * Backend failing, holding or accepting publishes; accepted messages are recorded. A message containing the text
+     * of {@code failOnce} fails a single time.
+     */
+    private static class StubBackend implements MessagingBackend {
+
+        private final List<Object> published = new CopyOnWriteArrayList<>();
+        private final List<CompletableFuture<Void>> held = new CopyOnWriteArrayList<>();
+        private volatile boolean failing;
+        private volatile boolean holding;
+        private volatile String failOnce;
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void publish(String topic, Object msg) {
+            publishAsync(topic, msg).join();
+        }
+
+        @Override
+        public CompletableFuture<Void> publishAsync(String topic, Object msg) {
+            String failOnce = this.failOnce;
+            if (failOnce != null && msg instanceof EncodedMessage && new String(((EncodedMessage) msg).getBytes()).contains("\"" + failOnce + "\"")) {
+                this.failOnce = null;
+                return CompletableFuture.failedFuture(new IllegalStateException("Backend is down!"));
+            }
+            if (failing) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Backend is down!"));
+            }
+            if (holding) {
+                CompletableFuture<Void> call = new CompletableFuture<>();
+                held.add(call);
+                return call;
+            }
+            published.add(msg);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void listen(String queue, MessageHandler messageHandler) {
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.paperboy.connector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaperboyConnectorTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    Path directory;
+
+    private RecordingPaperboyNode node;
+    private PaperboyConnector connector;
+
+    @AfterEach
+    void tearDown() {
+        if (connector != null) {
+            connector.close();
+        }
+        if (node != null) {
+            node.close();
+        }
+    }
+
+    @Test
+    void passesCallbacksToEmbeddedBackendWrappedByOutbox() throws Exception {
+        node = new RecordingPaperboyNode();
+        EmbeddedBackend embeddedBackend = new EmbeddedBackend("token");
+        embeddedBackend.setDiscoveryEnabled(false);
+        embeddedBackend.setSeedServices(List.of(node.url()));
+        embeddedBackend.setCallbackAddress("127.0.0.1");
+        embeddedBackend.setKeepAliveInterval(Duration.ZERO);
+        OutboxMessagingBackend outbox = new OutboxMessagingBackend(embeddedBackend, JsonMessageCodec.shared(), directory);
+        CompletableFuture<String> subscribed = new CompletableFuture<>();
+        connector = new PaperboyConnector(outbox, new PaperboyCallbackHandler() {
+            @Override
+            public void onSubscription(MessageSender msgSender, String userId, String channel) {
+                subscribed.complete(userId + "@" + channel);
+            }
+
+            @Override
+            public boolean hasAccess(String userId, String channel) {
+                return true;
+            }
+        });
+        connector.init();
+        await(() -> !node.requests("/subscribeTopic/paperboy-subscription-request").isEmpty());
+
+        String token = connector.generateToken(() -> "user-1", "channel-1");
+        byte[] request = JsonMessageCodec.shared().encode(new AuthorizationMessage("ws-1", token, null, null));
+        connector.messageCallbackForEmbeddedBackend("paperboy-subscription-request", new String(request, StandardCharsets.UTF_8), "token");
+
+        assertEquals("user-1@channel-1", subscribed.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+}
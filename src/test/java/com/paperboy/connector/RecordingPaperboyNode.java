@@ -0,0 +1,102 @@
+package com.paperboy.connector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * In-process stand-in of a paperboy node's REST endpoints. It answers every request with 200, optionally after an
+ * injected latency, and records the POST requests in the order they were received.
+ */
+class RecordingPaperboyNode implements AutoCloseable {
+
+    static final class Request {
+
+        final String path;
+        final byte[] body;
+
+        Request(String path, byte[] body) {
+            this.path = path;
+            this.body = body;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+    private volatile Duration latency;
+
+    RecordingPaperboyNode() throws IOException {
+        this(Duration.ZERO);
+    }
+
+    RecordingPaperboyNode(Duration latency) throws IOException {
+        this.latency = latency;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        Duration delay = latency;
+        if (!delay.isZero()) {
+            try {
+                Thread.sleep(delay.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/instance")) {
+            byte[] instanceId = "stub-instance".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, instanceId.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(instanceId);
+            }
+            return;
+        }
+        requests.add(new Request(path, body));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+
+    String url() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @return POST requests whose path starts with the prefix, in the order they were received
+     */
+    List<Request> requests(String pathPrefix) {
+        return requests.stream().filter(r -> r.path.startsWith(pathPrefix)).collect(Collectors.toList());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,235 @@
+package com.paperboy.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process Redis protocol (RESP) stand-in holding lists, for the queue consumers: RPUSH, BLPOP (honouring its
+ * timeout), LRANGE, LTRIM and MULTI/EXEC transactions, which are executed atomically. Every other command is answered
+ * with +OK. The names of the received commands are recorded in order.
+ */
+class RecordingRedisServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // guarded by itself
+    private final Map<String, LinkedList<byte[]>> lists = new HashMap<>();
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+
+    RecordingRedisServer() throws IOException {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.submit(this::accept);
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    void push(String list, String... elements) {
+        synchronized (lists) {
+            for (String element : elements) {
+                lists.computeIfAbsent(list, k -> new LinkedList<>()).add(element.getBytes(StandardCharsets.UTF_8));
+            }
+            lists.notifyAll();
+        }
+    }
+
+    int size(String list) {
+        synchronized (lists) {
+            LinkedList<byte[]> elements = lists.get(list);
+            return elements != null ? elements.size() : 0;
+        }
+    }
+
+    /**
+     * @return names of the commands received so far, upper case
+     */
+    List<String> commands() {
+        return List.copyOf(commands);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.submit(() -> serve(socket));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            List<List<byte[]>> transaction = null;
+            while (true) {
+                List<byte[]> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                String name = name(command);
+                commands.add(name);
+                if (name.equals("MULTI")) {
+                    transaction = new ArrayList<>();
+                    writeSimple(out, "OK");
+                } else if (name.equals("EXEC") && transaction != null) {
+                    synchronized (lists) {
+                        out.write(("*" + transaction.size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                        for (List<byte[]> queued : transaction) {
+                            execute(queued, out);
+                        }
+                    }
+                    transaction = null;
+                } else if (transaction != null) {
+                    transaction.add(command);
+                    writeSimple(out, "QUEUED");
+                } else if (name.equals("BLPOP")) {
+                    blpop(command, out);
+                } else {
+                    synchronized (lists) {
+                        execute(command, out);
+                    }
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // connection closed
+        }
+    }
+
+    private void execute(List<byte[]> command, OutputStream out) throws IOException {
+        String name = name(command);
+        if (name.equals("RPUSH")) {
+            LinkedList<byte[]> list = lists.computeIfAbsent(arg(command, 1), k -> new LinkedList<>());
+            list.addAll(command.subList(2, command.size()));
+            lists.notifyAll();
+            out.write((":" + list.size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        } else if (name.equals("LRANGE")) {
+            LinkedList<byte[]> list = lists.getOrDefault(arg(command, 1), new LinkedList<>());
+            List<byte[]> range = list.subList(0, Math.min(list.size(), Math.max(0, index(arg(command, 3), list.size()) + 1)));
+            out.write(("*" + range.size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (byte[] element : range) {
+                writeBulk(out, element);
+            }
+        } else if (name.equals("LTRIM")) {
+            LinkedList<byte[]> list = lists.get(arg(command, 1));
+            if (list != null) {
+                int start = Math.min(index(arg(command, 2), list.size()), list.size());
+                int end = Math.min(index(arg(command, 3), list.size()), list.size() - 1);
+                List<byte[]> kept = start <= end ? new ArrayList<>(list.subList(start, end + 1)) : List.of();
+                list.clear();
+                list.addAll(kept);
+            }
+            writeSimple(out, "OK");
+        } else if (name.equals("PING")) {
+            writeSimple(out, "PONG");
+        } else {
+            writeSimple(out, "OK");
+        }
+    }
+
+    private void blpop(List<byte[]> command, OutputStream out) throws IOException, InterruptedException {
+        String key = arg(command, 1);
+        long timeoutMillis = Long.parseLong(arg(command, command.size() - 1)) * 1000;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        byte[] element = null;
+        synchronized (lists) {
+            while (true) {
+                LinkedList<byte[]> list = lists.get(key);
+                if (list != null && !list.isEmpty()) {
+                    element = list.removeFirst();
+                    break;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeoutMillis > 0 && remaining <= 0) {
+                    break;
+                }
+                lists.wait(timeoutMillis > 0 ? remaining : 0);
+            }
+        }
+        if (element == null) {
+            out.write("*-1\r\n".getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        out.write("*2\r\n".getBytes(StandardCharsets.US_ASCII));
+        writeBulk(out, key.getBytes(StandardCharsets.UTF_8));
+        writeBulk(out, element);
+    }
+
+    private static int index(String index, int size) {
+        int i = Integer.parseInt(index);
+        return i < 0 ? size + i : i;
+    }
+
+    private static String name(List<byte[]> command) {
+        return arg(command, 0).toUpperCase();
+    }
+
+    private static String arg(List<byte[]> command, int i) {
+        return new String(command.get(i), StandardCharsets.UTF_8);
+    }
+
+    private static void writeSimple(OutputStream out, String reply) throws IOException {
+        out.write(("+" + reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+        out.write(("$" + value.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(value);
+        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        int args = Integer.parseInt(header.substring(1));
+        List<byte[]> command = new ArrayList<>(args);
+        for (int i = 0; i < args; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            command.add(Arrays.copyOf(in.readNBytes(length + 2), length));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) {
+                return null;
+            }
+            line.append((char) c);
+        }
+        in.read(); // \n
+        return line.toString();
+    }
+
+}
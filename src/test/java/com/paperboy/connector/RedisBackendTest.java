@@ -0,0 +1,94 @@
+package com.paperboy.connector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.JedisPool;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisBackendTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private RecordingRedisServer server;
+    private JedisPool jedisPool;
+    private RedisBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new RecordingRedisServer();
+        jedisPool = new JedisPool("127.0.0.1", server.port());
+        backend = new RedisBackend(jedisPool);
+        backend.setDrainBatchSize(2);
+        backend.init();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        backend.close();
+        jedisPool.close();
+        server.close();
+    }
+
+    @Test
+    void drainsQueueInOrderAndStopsConsumersOnClose() throws Exception {
+        List<String> queued = messages(0, 5);
+        server.push("paperboy-subscription-request", queued.toArray(new String[0]));
+        List<String> received = new CopyOnWriteArrayList<>();
+        Set<Thread> consumers = ConcurrentHashMap.newKeySet();
+        backend.listen("paperboy-subscription-request", (topic, message) -> {
+            received.add(message);
+            consumers.add(Thread.currentThread());
+        });
+        await(() -> received.size() == queued.size());
+        // the first element is taken by BLPOP, the rest in batches of two without blocking
+        assertEquals(queued, received);
+        assertEquals(3, server.commands().stream().filter("EXEC"::equals).count());
+
+        // elements pushed while the consumer is blocked
+        List<String> pushed = messages(5, 10);
+        server.push("paperboy-subscription-request", pushed.toArray(new String[0]));
+        await(() -> received.size() == queued.size() + pushed.size());
+        assertEquals(messages(0, 10), received);
+        assertEquals(0, server.size("paperboy-subscription-request"));
+
+        backend.close();
+        for (Thread consumer : consumers) {
+            consumer.join(TIMEOUT.toMillis());
+            assertFalse(consumer.isAlive(), "consumer thread still running");
+        }
+        long blpops = server.commands().stream().filter("BLPOP"::equals).count();
+        // longer than the BLPOP timeout, a running consumer would have polled again
+        Thread.sleep(1500);
+        assertEquals(blpops, server.commands().stream().filter("BLPOP"::equals).count());
+        server.push("paperboy-subscription-request", "after-close");
+        Thread.sleep(100);
+        assertEquals(1, server.size("paperboy-subscription-request"));
+    }
+
+    private static List<String> messages(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> "message-" + i).collect(Collectors.toList());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+
+}